@@ -0,0 +1,63 @@
+package backend;
+
+/**
+ * VectorSource over vectors that are already in memory, format
+ * {VECTOR1[], VECTOR2[], etc} with VECTOR1 = {"1","0","0",etc}. A vector
+ * {"RESET"} stands for a RESET line, see VectorSource.reset
+ */
+public class ArrayVectorSource implements VectorSource {
+
+    private final String[][] vectors;
+    private int index = -1;
+    private boolean reset;
+
+    ArrayVectorSource(String[][] vectors) {
+        this.vectors = vectors;
+    }
+
+    @Override
+    public boolean next() {
+        reset = false;
+        while (++index < vectors.length) {
+            if (vectors[index].length == 1 && vectors[index][0].equals(RESET)) {
+                reset = true;
+                continue;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean reset() {
+        return reset;
+    }
+
+    @Override
+    public int width() {
+        return vectors[index].length;
+    }
+
+    @Override
+    public int state(int column) {
+        if (column >= vectors[index].length) {
+            throw new IllegalArgumentException("Vector " + (index + 1) + " has " + vectors[index].length
+                    + " bits, no bit for input " + (column + 1));
+        }
+        String bit = vectors[index][column];
+        int state = bit.length() == 1 ? Logic.fromChar(bit.charAt(0)) : -1;
+        if (state < 0) {
+            throw new IllegalArgumentException("Invalid vector bit '" + bit + "' in vector " + (index + 1));
+        }
+        return state;
+    }
+
+    @Override
+    public char charAt(int column) {
+        return vectors[index][column].charAt(0);
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,94 @@
+package backend;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Writes results as fixed size binary records for downstream tools.
+ * 
+ * Header (big endian): the bytes "VSIM", int version (1), int flags (bit 0 set
+ * when delta encoded), int input count, int state count, int output count.
+ * 
+ * Each record then packs the inputs, the DFF states and the outputs in that
+ * order, two bits per value (0, 1, 2 for X), four values per byte with the
+ * lowest index in the high bits. The three fields each start on a byte
+ * boundary. With delta encoding, the state and output bytes are XORed with
+ * those of the previous record (the first record is XORed with zeros)
+ */
+public class BinaryResultSink implements ResultSink {
+
+    static final int VERSION = 1;
+    static final int FLAG_DELTA = 1;
+
+    private final DataOutputStream out;
+    private final boolean delta;
+    private final int inputCount;
+    private final byte[] record;
+    private final byte[] previous;
+    private final int stateOffset;
+
+    /**
+     * @param fileName    the binary result file to create
+     * @param inputCount  number of inputs per vector
+     * @param stateCount  number of reported DFF states
+     * @param outputCount number of outputs
+     * @param delta       XOR state and output bytes with the previous record
+     */
+    BinaryResultSink(String fileName, int inputCount, int stateCount, int outputCount, boolean delta)
+            throws IOException {
+        this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName), 1 << 16));
+        this.delta = delta;
+        this.inputCount = inputCount;
+        this.stateOffset = packedSize(inputCount);
+        this.record = new byte[stateOffset + packedSize(stateCount) + packedSize(outputCount)];
+        this.previous = new byte[record.length];
+        out.writeBytes("VSIM");
+        out.writeInt(VERSION);
+        out.writeInt(delta ? FLAG_DELTA : 0);
+        out.writeInt(inputCount);
+        out.writeInt(stateCount);
+        out.writeInt(outputCount);
+    }
+
+    static int packedSize(int values) {
+        return (values + 3) >> 2;
+    }
+
+    @Override
+    public void write(char[] inputs, int inputCount, byte[] states, byte[] outputs) throws IOException {
+        Arrays.fill(record, (byte) 0);
+        int count = Math.min(inputCount, this.inputCount);
+        for (int i = 0; i < count; i++) {
+            int state = Logic.fromChar(inputs[i]);
+            pack(0, i, state < 0 ? Logic.X : (byte) state);
+        }
+        for (int i = 0; i < states.length; i++) {
+            pack(stateOffset, i, states[i]);
+        }
+        int outputOffset = stateOffset + packedSize(states.length);
+        for (int i = 0; i < outputs.length; i++) {
+            pack(outputOffset, i, outputs[i]);
+        }
+        if (delta) {
+            byte packed;
+            for (int i = stateOffset; i < record.length; i++) {
+                packed = record[i];
+                record[i] ^= previous[i];
+                previous[i] = packed;
+            }
+        }
+        out.write(record);
+    }
+
+    private void pack(int offset, int index, byte state) {
+        record[offset + (index >> 2)] |= CompactResultSink.code(state) << (6 - ((index & 3) << 1));
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+}
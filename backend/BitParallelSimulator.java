@@ -0,0 +1,151 @@
+package backend;
+
+import java.util.Arrays;
+
+/**
+ * Pattern-parallel simulation engine. Every net holds 64 patterns at once in
+ * dual-rail form: bit l of the "one" word is set when pattern l is 1, bit l of
+ * the "zero" word is set when it is 0, and neither bit is set for X. Each gate
+ * is evaluated once per 64 patterns with plain bitwise operations.
+ * 
+ * Lanes are independent, so they can either hold 64 vectors of a purely
+ * combinational circuit or 64 independent sequences stepped together through
+ * time.
+ */
+public class BitParallelSimulator implements LaneSimulator {
+
+    static final int LANES = 64;
+
+    final CompiledCircuit circuit;
+    // values[2 * n] is the "one" rail of node n, values[2 * n + 1] the "zero" rail
+    final long[] values;
+    private final long[] sampled;
+
+    BitParallelSimulator(CompiledCircuit circuit) {
+        this.circuit = circuit;
+        this.values = new long[circuit.nodeCount * 2];
+        this.sampled = new long[circuit.dffs.length * 2];
+    }
+
+    @Override
+    public CompiledCircuit circuit() {
+        return circuit;
+    }
+
+    @Override
+    public int lanes() {
+        return LANES;
+    }
+
+    @Override
+    public void reset() {
+        Arrays.fill(values, 0L);
+    }
+
+    /**
+     * Assigns the 64 lanes of a node
+     * 
+     * @param node the node id
+     * @param one  lanes holding a 1
+     * @param zero lanes holding a 0 (lanes in neither word are X)
+     */
+    void setLanes(int node, long one, long zero) {
+        values[node << 1] = one;
+        values[(node << 1) + 1] = zero;
+    }
+
+    @Override
+    public void setLanes(int node, long[] one, long[] zero) {
+        setLanes(node, one[0], zero[0]);
+    }
+
+    @Override
+    public long ones(int node, int word) {
+        return values[node << 1];
+    }
+
+    @Override
+    public long zeros(int node, int word) {
+        return values[(node << 1) + 1];
+    }
+
+    @Override
+    public void step() {
+        clockDffs();
+        evaluate();
+    }
+
+    void clockDffs() {
+        final int[] dffs = circuit.dffs;
+        final int[] faninStart = circuit.faninStart;
+        final int[] fanin = circuit.fanin;
+        int src;
+        for (int i = 0; i < dffs.length; i++) {
+            src = fanin[faninStart[dffs[i]]] << 1;
+            sampled[i << 1] = values[src];
+            sampled[(i << 1) + 1] = values[src + 1];
+        }
+        for (int i = 0; i < dffs.length; i++) {
+            values[dffs[i] << 1] = sampled[i << 1];
+            values[(dffs[i] << 1) + 1] = sampled[(i << 1) + 1];
+        }
+    }
+
+    void evaluate() {
+        final long[] values = this.values;
+        final int[] order = circuit.evalOrder;
+        final int[] faninStart = circuit.faninStart;
+        final int[] fanin = circuit.fanin;
+        final byte[] types = circuit.types;
+        int node, k, end, src;
+        long one, zero, swap;
+        for (int i = 0; i < order.length; i++) {
+            node = order[i];
+            k = faninStart[node];
+            end = faninStart[node + 1];
+            src = fanin[k++] << 1;
+            one = values[src];
+            zero = values[src + 1];
+            switch (types[node]) {
+                case CompiledCircuit.BUF:
+                case CompiledCircuit.OUTPUT:
+                    break;
+                case CompiledCircuit.NOT:
+                    swap = one;
+                    one = zero;
+                    zero = swap;
+                    break;
+                case CompiledCircuit.AND:
+                case CompiledCircuit.NAND:
+                    while (k < end) {
+                        src = fanin[k++] << 1;
+                        one &= values[src];
+                        zero |= values[src + 1];
+                    }
+                    if (types[node] == CompiledCircuit.NAND) {
+                        swap = one;
+                        one = zero;
+                        zero = swap;
+                    }
+                    break;
+                case CompiledCircuit.OR:
+                case CompiledCircuit.NOR:
+                    while (k < end) {
+                        src = fanin[k++] << 1;
+                        one |= values[src];
+                        zero &= values[src + 1];
+                    }
+                    if (types[node] == CompiledCircuit.NOR) {
+                        swap = one;
+                        one = zero;
+                        zero = swap;
+                    }
+                    break;
+                default:
+                    continue;
+            }
+            values[node << 1] = one;
+            values[(node << 1) + 1] = zero;
+        }
+    }
+}
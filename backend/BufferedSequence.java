@@ -0,0 +1,161 @@
+package backend;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The vectors of one run of a vector stream, then their results, held so the
+ * run can be simulated away from the stream and written back in file order
+ * later. Vector text and results are kept as bytes, one per character or
+ * state. The buffer is the vector source of its vectors and the sink of their
+ * results, so it can be simulated on a SimulationContext as it is; lane
+ * engines store results into it directly. Used by SequenceRunner and
+ * WideRunner
+ */
+class BufferedSequence implements VectorSource, ResultSink {
+    private byte[] text = new byte[256];
+    private int[] ends = new int[16];
+    // Vectors held
+    int count;
+    private int used;
+    // Results: per vector the states then the outputs
+    byte[] results = new byte[0];
+    int written;
+    private int stateCount;
+    private int outputCount;
+    // Cursor while read as a vector source
+    private int index = -1;
+    private int from;
+
+    /**
+     * Drops the vectors and results, keeping the buffers
+     */
+    void clear() {
+        count = 0;
+        used = 0;
+        written = 0;
+        rewind();
+    }
+
+    /**
+     * Moves the vector source cursor back before the first vector
+     */
+    void rewind() {
+        index = -1;
+        from = 0;
+    }
+
+    /**
+     * Appends the current vector of a source
+     */
+    void add(VectorSource vectors) {
+        int width = vectors.width();
+        if (used + width > text.length) {
+            text = Arrays.copyOf(text, Math.max(text.length * 2, used + width));
+        }
+        for (int j = 0; j < width; j++) {
+            text[used++] = (byte) vectors.charAt(j);
+        }
+        if (count == ends.length) {
+            ends = Arrays.copyOf(ends, count * 2);
+        }
+        ends[count++] = used;
+    }
+
+    @Override
+    public boolean next() {
+        if (index >= 0)
+            from = ends[index];
+        return ++index < count;
+    }
+
+    @Override
+    public int width() {
+        return ends[index] - from;
+    }
+
+    @Override
+    public int state(int column) {
+        return state(index, column);
+    }
+
+    @Override
+    public char charAt(int column) {
+        return (char) (text[from + column] & 0xff);
+    }
+
+    /**
+     * @param vector index of the vector in the sequence
+     * @param column position inside the vector
+     * @return the state of the bit, 0, 1 or 4 for X
+     */
+    int state(int vector, int column) {
+        int from = vector == 0 ? 0 : ends[vector - 1];
+        if (column >= ends[vector] - from) {
+            throw new IllegalArgumentException("Vector " + (vector + 1) + " of a sequence has "
+                    + (ends[vector] - from) + " bits, no bit for input " + (column + 1));
+        }
+        int state = Logic.fromChar(text[from + column]);
+        if (state < 0) {
+            throw new IllegalArgumentException("Invalid vector character '" + (char) text[from + column]
+                    + "' in vector " + (vector + 1) + " of a sequence");
+        }
+        return state;
+    }
+
+    /**
+     * Makes room for the results of every vector held and starts writing
+     * them from the first vector
+     */
+    void prepare(int stateCount, int outputCount) {
+        this.stateCount = stateCount;
+        this.outputCount = outputCount;
+        int size = count * (stateCount + outputCount);
+        if (results.length < size) {
+            results = new byte[size];
+        }
+        written = 0;
+    }
+
+    @Override
+    public void write(char[] inputs, int inputCount, byte[] states, byte[] outputs) {
+        if (written == 0) {
+            prepare(states.length, outputs.length);
+        }
+        System.arraycopy(states, 0, results, written, stateCount);
+        written += stateCount;
+        System.arraycopy(outputs, 0, results, written, outputCount);
+        written += outputCount;
+    }
+
+    /**
+     * Hands the vectors and their results to a sink, in order
+     */
+    void replay(ResultSink sink) throws IOException {
+        byte[] states = new byte[stateCount];
+        byte[] outputs = new byte[outputCount];
+        char[] inputs = new char[0];
+        int start = 0;
+        int read = 0;
+        int width;
+        for (int i = 0; i < count; i++) {
+            width = ends[i] - start;
+            if (inputs.length < width) {
+                inputs = new char[width];
+            }
+            for (int j = 0; j < width; j++) {
+                inputs[j] = (char) (text[start + j] & 0xff);
+            }
+            start = ends[i];
+            System.arraycopy(results, read, states, 0, stateCount);
+            read += stateCount;
+            System.arraycopy(results, read, outputs, 0, outputCount);
+            read += outputCount;
+            sink.write(inputs, width, states, outputs);
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -1,7 +1,12 @@
 package backend;
 
+import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.HashMap;
 
 public class Circuit {
@@ -9,15 +14,63 @@ public class Circuit {
     HashMap<String, Wire> wireList;
     HashMap<String, Wire> inputs;
     HashMap<String, Wire> outputs;
-    HashMap<Integer, HashMap<String, Entity>> sched;
+    // Entities by level: sched[level] holds every entity of that level
+    Entity[][] sched;
+    // D input values sampled by calculateStates, indexed like sched[0]
+    private int[] sampled = new int[0];
     Gate firstGate;
     Gate lastGate;
+    CompiledCircuit compiled;
+    SimulationMode mode = SimulationMode.COMPILED;
+    ResultFormat resultFormat = ResultFormat.TEXT;
+    boolean deltaEncoding;
+    NetMode netMode = NetMode.BUFFERED;
+    // Run the netlist optimizer before simulating, once
+    boolean optimize;
+    boolean optimized;
+    // Renumber the compiled nodes for cache locality before simulating, once
+    boolean renumber;
+    boolean renumbered;
+    // Value of every input column that is the same in every vector, -1 for
+    // the others; null if the vectors were not scanned
+    int[] tiedInputs;
+    // Where to save the compiled circuit after calibration, null to skip
+    String snapshotPath;
+    byte[] snapshotHash;
+
+    // Describe the compiled form stored in snapshots: net model, levelized
+    static final String SNAPSHOT_VARIANT = "buffered";
+    static final String DIRECT_SNAPSHOT_VARIANT = "direct";
+    // Run metrics, null when they are not collected
+    Metrics metrics;
+    // ECO editor, created on first use
+    private NetlistEditor editor;
+    // State the compiled engines start from, null for all X
+    StateCheckpoint resumeFrom;
+    // Checkpoint file read before simulating / written after, null to skip
+    String resumePath;
+    String checkpointPath;
+    // Worker threads for the independent sequences of the vectors
+    int threads = 1;
+    // Level-parallel engine: threads per wide level, gates of a wide level
+    int levelThreads = Runtime.getRuntime().availableProcessors();
+    int levelThreshold = LevelParallelSimulator.DEFAULT_THRESHOLD;
+    // Wide engine: lanes per net
+    int lanes = WideSimulator.DEFAULT_LANES;
+    boolean vectorKernel;
+    // Context of the last compiled run, kept for checkpoint, or the state it
+    // ended in when it ran on several threads
+    private SimulationContext lastContext;
+    private StateCheckpoint lastState;
+    // Generated evaluators, shared by every context and every fork of the
+    // same compiled circuit since they hold no state
+    private GeneratedCode generated = new GeneratedCode();
 
     Circuit() {
         this.wireList = new HashMap<String, Wire>(27157);
         this.inputs = new HashMap<>(40);
         this.outputs = new HashMap<>(350);
-        this.sched = new HashMap<>(1850);
+        this.sched = new Entity[0][];
     }
 
     /***
@@ -55,7 +108,13 @@ public class Circuit {
      * @param gate the gate you are adding the fanout to
      */
     public void addFanOut(String name, Gate gate) {
-        Wire wire = wireList.get(name);
+        connectFanOut(wireList.get(name), gate);
+    }
+
+    /**
+     * Same as addFanOut, for a wire that was already looked up
+     */
+    void connectFanOut(Wire wire, Gate gate) {
         wire.addInput(gate);
         gate.addFanOut(wire);
     }
@@ -68,7 +127,13 @@ public class Circuit {
      * @param gate the gate you are adding the fanin to
      */
     public void addFanIn(String name, Gate gate) {
-        Wire wire = wireList.get(name);
+        connectFanIn(wireList.get(name), gate);
+    }
+
+    /**
+     * Same as addFanIn, for a wire that was already looked up
+     */
+    void connectFanIn(Wire wire, Gate gate) {
         wire.addOutput(gate);
         gate.addFanIn(wire);
     }
@@ -115,7 +180,7 @@ public class Circuit {
      * 
      * @throws IOException
      */
-    void printContents(FileWriter writer) throws IOException {
+    void printContents(Writer writer) throws IOException {
         if (firstGate != null) {
             // Print the table header
             String header = String.format("%-10s %-10s %-10s %-10s %-20s %-10s %-20s %-10s%n\n",
@@ -158,57 +223,315 @@ public class Circuit {
     }
 
     /**
-     * Iterate through all inputs and DFFs to calibrate gate levels
+     * Alternative to createBuffers that adds no gates: every internal wire is
+     * replaced by direct connections from its driver to its sinks, so the pass
+     * is linear in the number of connections. printContents then lists the
+     * driving and reading gates instead of the buffers between them
+     */
+    void connectNets() {
+        for (Wire wire : wireList.values()) {
+            wire.connectDirect();
+        }
+        wireList.clear();
+    }
+
+    /**
+     * Iterate through all inputs and DFFs to calibrate gate levels. Levels are
+     * assigned in topological (Kahn) order with DFFs as cut points, so every
+     * entity and connection is visited a constant number of times. An entity's
+     * level is the longest path to it from an input or DFF; entities that
+     * cannot be reached from either keep level -1 and are not scheduled
      */
     public void calculateLevels() {
-        // Calibrate inputs
-        Wire wire;
-        // DataWrapper<Entity> fanOut_ptr;
-        for (String wireName : inputs.keySet()) {
-            wire = inputs.get(wireName);
-            wire.calculateLevels(0, sched);
-        }
-        // Calibrate DFFs
+        ArrayList<Entity> reached = new ArrayList<>(inputs.size() * 16);
+        // Inputs and DFFs are the sources, all on level 0
+        for (Wire wire : inputs.values()) {
+            wire.pendingFanIn = 0;
+            reached.add(wire);
+        }
         Gate gate_ptr = firstGate;
-        int oldLevel;
-        DataWrapper<Entity> out_ptr;
         while (gate_ptr != null) {
             if (gate_ptr.getType() == GateType.DFF) {
-                oldLevel = gate_ptr.getLevel();
-                gate_ptr.setLevel(0);
-                gate_ptr.recordLevel(oldLevel, 0, sched);
-                out_ptr = gate_ptr.fanOut;
-                while (out_ptr != null) {
-                    out_ptr.data.calculateLevels(1, sched);
-                    out_ptr = out_ptr.next;
-                }
-                gate_ptr.fanOut.data.calculateLevels(1, sched);
+                gate_ptr.pendingFanIn = 0;
+                reached.add(gate_ptr);
             }
             gate_ptr = gate_ptr.nextGate;
         }
+        int sources = reached.size();
+
+        // Discover everything reachable from the sources and count the
+        // connections into each entity. Connections into DFFs (and inputs)
+        // are cut
+        DataWrapper<Entity> out_ptr;
+        Entity entity, next;
+        int i;
+        for (i = 0; i < reached.size(); i++) {
+            entity = reached.get(i);
+            entity.level = -1;
+            out_ptr = entity.fanOut;
+            while (out_ptr != null) {
+                next = out_ptr.data;
+                if (next != null && !isLevelSource(next)) {
+                    if (next.pendingFanIn < 0) {
+                        next.pendingFanIn = 0;
+                        reached.add(next);
+                    }
+                    next.pendingFanIn++;
+                }
+                out_ptr = out_ptr.next;
+            }
+        }
+
+        // Release entities once all of their reachable fan-ins are levelled
+        Entity[] ready = new Entity[reached.size()];
+        int head = 0;
+        int tail = 0;
+        for (i = 0; i < sources; i++) {
+            entity = reached.get(i);
+            entity.level = 0;
+            ready[tail++] = entity;
+        }
+        int maxLevel = 0;
+        while (head < tail) {
+            entity = ready[head++];
+            out_ptr = entity.fanOut;
+            while (out_ptr != null) {
+                next = out_ptr.data;
+                if (next != null && !isLevelSource(next)) {
+                    if (next.level <= entity.level) {
+                        next.level = entity.level + 1;
+                    }
+                    if (--next.pendingFanIn == 0) {
+                        maxLevel = Math.max(maxLevel, next.level);
+                        ready[tail++] = next;
+                    }
+                }
+                out_ptr = out_ptr.next;
+            }
+        }
+        if (tail < reached.size()) {
+            System.err.println("Combinational loop detected: " + (reached.size() - tail)
+                    + " entities could not be levelled");
+        }
+
+        // Build the dense schedule, ascending by level
+        int[] counts = new int[maxLevel + 1];
+        for (i = 0; i < tail; i++) {
+            counts[ready[i].level]++;
+        }
+        sched = new Entity[tail == 0 ? 0 : maxLevel + 1][];
+        for (i = 0; i < sched.length; i++) {
+            sched[i] = new Entity[counts[i]];
+            counts[i] = 0;
+        }
+        for (i = 0; i < tail; i++) {
+            entity = ready[i];
+            sched[entity.level][counts[entity.level]++] = entity;
+        }
+        for (Entity levelled : reached) {
+            if (levelled.pendingFanIn != 0) {
+                levelled.level = -1;
+            }
+            levelled.pendingFanIn = -1;
+        }
+    }
+
+    static boolean isLevelSource(Entity entity) {
+        return entity.getType() == GateType.DFF || entity.getType() == GateType.INPUT;
+    }
+
+    /**
+     * Engineering change edits of the calibrated circuit, see NetlistEditor
+     * 
+     * @return the editor of this circuit
+     */
+    public NetlistEditor editor() {
+        if (editor == null) {
+            editor = new NetlistEditor(this);
+        }
+        return editor;
     }
 
-    public void calibrateCircuit(FileWriter writer) throws IOException {
+    /**
+     * Checkpoints the state reached by the last simulateCircuit call on a
+     * compiled engine
+     * 
+     * @return the checkpoint
+     */
+    public StateCheckpoint checkpoint() {
+        if (lastContext != null) {
+            return lastContext.checkpoint();
+        }
+        if (lastState == null) {
+            throw new IllegalStateException("No sequential compiled run to checkpoint");
+        }
+        return lastState;
+    }
+
+    /**
+     * Starts every later simulateCircuit call from a checkpoint instead of the
+     * all-X state. The checkpoint itself is not changed by the runs
+     * 
+     * @param checkpoint the state to start from, null for all X
+     */
+    public void restore(StateCheckpoint checkpoint) {
+        this.resumeFrom = checkpoint;
+    }
+
+    /**
+     * A circuit to simulate a continuation from a checkpoint on, independent of
+     * this one: it shares the compiled circuit, which is never modified, and
+     * the engine options, but not the legacy netlist, the run metrics or any
+     * simulation state. The legacy engine becomes the compiled one
+     * 
+     * @param checkpoint the state the fork starts from, null for all X
+     * @return the fork
+     */
+    public Circuit fork(StateCheckpoint checkpoint) {
+        if (compiled == null) {
+            compile();
+        }
+        Circuit fork = new Circuit();
+        fork.compiled = compiled;
+        fork.optimized = optimized;
+        fork.optimize = optimize;
+        fork.renumbered = renumbered;
+        fork.renumber = renumber;
+        fork.tiedInputs = tiedInputs;
+        fork.mode = mode == SimulationMode.LEGACY ? SimulationMode.COMPILED : mode;
+        fork.resultFormat = resultFormat;
+        fork.deltaEncoding = deltaEncoding;
+        fork.netMode = netMode;
+        fork.threads = threads;
+        fork.levelThreads = levelThreads;
+        fork.levelThreshold = levelThreshold;
+        fork.lanes = lanes;
+        fork.vectorKernel = vectorKernel;
+        fork.generated = generated;
+        fork.resumeFrom = checkpoint;
+        return fork;
+    }
+
+    /**
+     * Freezes the calibrated netlist into a CompiledCircuit used by the compiled
+     * simulation engine. Must be called after createBuffers and calculateLevels
+     */
+    public void compile() {
+        compiled = new CompiledCircuit(this);
+    }
+
+    void setMode(SimulationMode mode) {
+        this.mode = mode;
+    }
+
+    /**
+     * Applies the command line options that affect simulation and output
+     * 
+     * @param options the parsed options
+     */
+    void configure(SimulationOptions options) {
+        this.mode = options.mode;
+        this.resultFormat = options.format;
+        this.deltaEncoding = options.delta;
+        this.netMode = options.nets;
+        this.optimize = options.optimize;
+        this.renumber = options.renumber;
+        this.resumePath = options.resume;
+        this.checkpointPath = options.checkpoint;
+        this.threads = options.threads;
+        this.levelThreads = options.levelThreads;
+        this.levelThreshold = options.levelThreshold;
+        this.lanes = options.lanes;
+        this.vectorKernel = options.vectorKernel;
+    }
+
+    /**
+     * @param tiedInputs value of every input column that is the same in every
+     *                   vector, -1 for the others, see
+     *                   NetlistOptimizer.tiedColumns
+     */
+    void setTiedInputs(int[] tiedInputs) {
+        this.tiedInputs = tiedInputs;
+    }
+
+    /**
+     * @return the snapshot variant of circuits calibrated with a net mode
+     */
+    static String snapshotVariant(NetMode netMode) {
+        return netMode == NetMode.DIRECT ? DIRECT_SNAPSHOT_VARIANT : SNAPSHOT_VARIANT;
+    }
+
+    void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Saves the compiled circuit to a snapshot after calibration, so the next
+     * run on the same netlist can skip parsing and levelization
+     * 
+     * @param path the snapshot file
+     * @param hash hash of the netlist source the circuit was parsed from
+     */
+    void setSnapshot(String path, byte[] hash) {
+        this.snapshotPath = path;
+        this.snapshotHash = hash;
+    }
+
+    /**
+     * Creates the buffers (or connects the nets directly), calculates the
+     * levels and compiles the circuit, printing how long each step took
+     */
+    void prepare() {
         // Create buffers
         long startTime = System.currentTimeMillis();
+        long phaseStart = metrics != null ? metrics.start() : 0;
 
-        createBuffers();
+        if (netMode == NetMode.DIRECT) {
+            connectNets();
+        } else {
+            createBuffers();
+        }
 
+        if (metrics != null)
+            metrics.end(Metrics.BUFFER, phaseStart);
         long endTime = System.currentTimeMillis();
-        System.out.println("Buffer creation took " + (endTime - startTime) + " ms");
+        System.out.println((netMode == NetMode.DIRECT ? "Net connection" : "Buffer creation") + " took "
+                + (endTime - startTime) + " ms");
         // Calibrate levels
         startTime = System.currentTimeMillis();
+        long levelStartTime = System.nanoTime();
 
         calculateLevels();
 
+        long levelNanos = System.nanoTime() - levelStartTime;
+        if (metrics != null)
+            metrics.end(Metrics.LEVELIZE, levelStartTime);
+        endTime = System.currentTimeMillis();
+        System.out.println("Level calculation took " + (endTime - startTime) + " ms (" + (levelNanos / 1000)
+                + " us, " + sched.length + " levels)");
+        // Freeze the netlist into flat arrays
+        startTime = System.currentTimeMillis();
+        phaseStart = metrics != null ? metrics.start() : 0;
+
+        compile();
+
+        if (metrics != null)
+            metrics.end(Metrics.COMPILE, phaseStart);
         endTime = System.currentTimeMillis();
-        System.out.println("Level calculation took " + (endTime - startTime) + " ms");
+        System.out.println("Compilation took " + (endTime - startTime) + " ms");
+    }
+
+    public void calibrateCircuit(Writer writer) throws IOException {
+        prepare();
+        long phaseStart = metrics != null ? metrics.start() : 0;
 
         writer.write(
                 "----------------------------------------------------------------------------------------------------------\n");
         printContents(writer);
         writer.write(
                 "----------------------------------------------------------------------------------------------------------\n");
+        if (metrics != null)
+            metrics.end(Metrics.WRITE, phaseStart);
     }
 
     /**
@@ -221,47 +544,394 @@ public class Circuit {
     // TODO actually implement filePath
     public void simulateCircuit(String[] orderedInputs, String[] orderedOutputs, String[][] vectors, FileWriter writer)
             throws IOException {
-        if (orderedInputs.length != vectors[0].length) {
+        TextResultSink sink = new TextResultSink(writer);
+        simulateCircuit(orderedInputs, orderedOutputs, new ArrayVectorSource(vectors), sink);
+        sink.close();
+    }
+
+    /**
+     * Simulates the circuit on vectors pulled one at a time from a source, so
+     * the whole vector file never has to be held in memory
+     * 
+     * @param orderedInputs  input names in vector column order
+     * @param orderedOutputs output names in print order
+     * @param vectors        the vector source, consumed but not closed
+     * @param sink           receives the result of every vector
+     * @throws IOException
+     */
+    public void simulateCircuit(String[] orderedInputs, String[] orderedOutputs, VectorSource vectors,
+            ResultSink sink) throws IOException {
+        if (metrics == null) {
+            runEngine(orderedInputs, orderedOutputs, vectors, sink);
+            return;
+        }
+        metrics.mode = mode.name();
+        long bytesBefore = Metrics.allocatedBytes();
+        long phaseStart = metrics.start();
+        try {
+            runEngine(orderedInputs, orderedOutputs, vectors, sink);
+        } finally {
+            metrics.end(Metrics.SIMULATE, phaseStart);
+            metrics.allocatedBytes += Metrics.allocatedBytes() - bytesBefore;
+        }
+    }
+
+    /**
+     * Runs the configured engine, see simulateCircuit
+     */
+    private void runEngine(String[] orderedInputs, String[] orderedOutputs, VectorSource vectors,
+            ResultSink sink) throws IOException {
+        lastContext = null;
+        lastState = null;
+        if (mode == SimulationMode.LEGACY) {
+            if (optimize)
+                System.out.println("The legacy engine simulates the netlist as parsed: not optimizing");
+            if (renumber)
+                System.out.println("The legacy engine simulates the netlist as parsed: not renumbering");
+            if (resumePath != null || checkpointPath != null || resumeFrom != null)
+                System.out.println("The legacy engine always starts from X: not using checkpoints");
+            if (threads > 1)
+                System.out.println("The legacy engine runs on one thread: simulating sequences one by one");
+            simulateLegacy(orderedInputs, orderedOutputs, vectors, sink);
+            return;
+        }
+        if (compiled == null) {
+            compile();
+        }
+        if (optimize && !optimized) {
+            optimizeCircuit(orderedInputs);
+        }
+        if (renumber && !renumbered) {
+            renumberCircuit();
+        }
+        if (resumePath != null && resumeFrom == null) {
+            long startTime = System.currentTimeMillis();
+            resumeFrom = StateCheckpoint.read(resumePath);
+            System.out.println("Checkpoint loading took " + (System.currentTimeMillis() - startTime) + " ms (cycle "
+                    + resumeFrom.cycles + ")");
+        }
+        if (mode == SimulationMode.BIT_PARALLEL || mode == SimulationMode.WIDE) {
+            if (compiled.dffs.length == 0 || (resumeFrom == null && checkpointPath == null)) {
+                if (mode == SimulationMode.WIDE) {
+                    WideSimulator simulator = new WideSimulator(compiled, lanes, vectorKernel);
+                    if (simulator.fallback != null)
+                        System.out.println("Vector API kernel not used, " + simulator.fallback + ": using scalar lanes");
+                    simulateLanes(simulator, simulator.kernel.describe(), orderedInputs, orderedOutputs, vectors,
+                            sink);
+                } else {
+                    simulateLanes(new BitParallelSimulator(compiled), "64-bit words", orderedInputs, orderedOutputs,
+                            vectors, sink);
+                }
+                if (checkpointPath != null)
+                    System.out.println("Combinational circuit has no state between vectors: no checkpoint saved");
+                return;
+            }
+            // Every lane starts from X and no lane is the last state
+            System.out.println("Lanes do not use checkpoints: using compiled engine");
+        }
+
+        if (threads > 1) {
+            runSequences(orderedInputs, orderedOutputs, vectors, sink);
+            return;
+        }
+        CompiledSimulator simulator = createSimulator(metrics);
+        SimulationContext context = new SimulationContext(simulator, orderedInputs, orderedOutputs);
+        if (resumeFrom != null) {
+            context.restore(resumeFrom);
+        }
+        long cycles;
+        try {
+            cycles = context.run(vectors, sink);
+        } finally {
+            context.close();
+        }
+
+        if (metrics != null) {
+            metrics.vectors += cycles;
+            // The event-driven engine counts what it really evaluates
+            if (!(simulator instanceof EventDrivenSimulator))
+                metrics.addSweeps(compiled, cycles);
+        }
+        if (simulator instanceof EventDrivenSimulator) {
+            EventDrivenSimulator events = (EventDrivenSimulator) simulator;
+            System.out.println(String.format("Event-driven activity: %.2f%% (%d of %d gate evaluations)",
+                    events.activityRatio() * 100, events.evaluations,
+                    events.cycles * compiled.evalOrder.length));
+        }
+        lastContext = context;
+        if (checkpointPath != null) {
+            long startTime = System.currentTimeMillis();
+            checkpoint().write(checkpointPath);
+            System.out.println("Checkpoint saving took " + (System.currentTimeMillis() - startTime) + " ms (cycle "
+                    + context.cycles + ")");
+        }
+    }
+
+    /**
+     * Simulates the sequences between RESET lines on the worker threads, see
+     * SequenceRunner
+     */
+    private void runSequences(String[] orderedInputs, String[] orderedOutputs, VectorSource vectors,
+            ResultSink sink) throws IOException {
+        long startTime = System.currentTimeMillis();
+        SequenceRunner runner = new SequenceRunner(threads,
+                () -> new SimulationContext(createSimulator(null), orderedInputs, orderedOutputs));
+        runner.run(vectors, orderedInputs, sink, resumeFrom);
+        System.out.println(String.format("Simulated %d sequences (%d vectors) on %d threads in %d ms",
+                runner.sequenceCount, runner.vectorCount, threads, System.currentTimeMillis() - startTime));
+        if (metrics != null) {
+            metrics.vectors += runner.vectorCount;
+            // Counted as full sweeps, whatever the engine skips
+            metrics.addSweeps(compiled, runner.vectorCount);
+        }
+        lastState = runner.lastState;
+        if (checkpointPath != null && lastState != null) {
+            startTime = System.currentTimeMillis();
+            lastState.write(checkpointPath);
+            System.out.println("Checkpoint saving took " + (System.currentTimeMillis() - startTime) + " ms (cycle "
+                    + lastState.cycles + ")");
+        }
+    }
+
+    /**
+     * A context to simulate the compiled circuit with the configured engine,
+     * starting from the all-X state. Once the circuit is compiled (and
+     * optimized, if asked for) contexts can be made and run from any number
+     * of threads at once, each on its own vector stream
+     * 
+     * @param orderedInputs  input names in vector column order
+     * @param orderedOutputs output names in print order
+     * @return the new context
+     */
+    public SimulationContext newContext(String[] orderedInputs, String[] orderedOutputs) {
+        if (compiled == null) {
+            compile();
+        }
+        return new SimulationContext(createSimulator(null), orderedInputs, orderedOutputs);
+    }
+
+    /**
+     * Creates the engine of the configured mode. The bit-parallel, wide and
+     * legacy modes get the compiled engine
+     * 
+     * @param metrics run metrics for the event-driven engine to count into,
+     *                null for none
+     */
+    private CompiledSimulator createSimulator(Metrics metrics) {
+        if (mode == SimulationMode.EVENT_DRIVEN) {
+            EventDrivenSimulator events = new EventDrivenSimulator(compiled);
+            events.setMetrics(metrics);
+            return events;
+        } else if (mode == SimulationMode.PACKED) {
+            return new PackedSimulator(compiled);
+        } else if (mode == SimulationMode.GENERATED) {
+            return generateSimulator();
+        } else if (mode == SimulationMode.LEVEL_PARALLEL) {
+            // The threads spin at every level, so more threads than cores
+            // only take turns
+            int threadCount = Math.min(levelThreads, Runtime.getRuntime().availableProcessors());
+            LevelParallelSimulator levels = new LevelParallelSimulator(compiled, threadCount, levelThreshold);
+            System.out.println(String.format("Level-parallel evaluation: %d of %d levels split over %d threads",
+                    levels.wideLevels, compiled.levelStart.length - 1, levels.wideLevels > 0 ? threadCount : 1));
+            return levels;
+        }
+        return new CompiledSimulator(compiled);
+    }
+
+    /**
+     * Generates the straight-line evaluators of the compiled circuit, once per
+     * compiled circuit and its forks, falling back to the compiled engine if
+     * the JVM refuses the generated classes
+     */
+    private CompiledSimulator generateSimulator() {
+        GeneratedSimulator.Evaluator[] evaluators;
+        synchronized (generated) {
+            if (generated.compiled != compiled) {
+                long startTime = System.currentTimeMillis();
+                EvaluatorGenerator generator = new EvaluatorGenerator();
+                try {
+                    generated.evaluators = generator.generate(compiled);
+                    System.out.println(String.format("Code generation took %d ms (%d classes, %d methods, %d bytes)",
+                            System.currentTimeMillis() - startTime, generator.classCount, generator.methodCount,
+                            generator.codeBytes));
+                } catch (ReflectiveOperationException | LinkageError e) {
+                    System.err.println("Code generation failed, using compiled engine: " + e);
+                    generated.evaluators = null;
+                }
+                generated.compiled = compiled;
+            }
+            evaluators = generated.evaluators;
+        }
+        return evaluators != null ? new GeneratedSimulator(compiled, evaluators) : new CompiledSimulator(compiled);
+    }
+
+    /**
+     * The evaluators generated for one compiled circuit
+     */
+    private static final class GeneratedCode {
+        GeneratedSimulator.Evaluator[] evaluators;
+        CompiledCircuit compiled;
+    }
+
+    /**
+     * Replaces the compiled circuit by its optimized form, with the tied
+     * inputs as constants
+     * 
+     * @param orderedInputs input names in vector column order
+     */
+    private void optimizeCircuit(String[] orderedInputs) {
+        long startTime = System.currentTimeMillis();
+        long phaseStart = metrics != null ? metrics.start() : 0;
+        NetlistOptimizer optimizer = new NetlistOptimizer(compiled);
+        int tied = 0;
+        if (tiedInputs != null) {
+            int[] inputIds = compiled.resolveInputs(orderedInputs);
+            for (int j = 0; j < inputIds.length && j < tiedInputs.length; j++) {
+                if (tiedInputs[j] >= 0) {
+                    optimizer.tie(inputIds[j], tiedInputs[j]);
+                    tied++;
+                }
+            }
+        }
+        int before = compiled.evalOrder.length;
+        compiled = optimizer.run();
+        optimized = true;
+        if (metrics != null)
+            metrics.end(Metrics.OPTIMIZE, phaseStart);
+        System.out.println(String.format(
+                "Optimization took %d ms: %d of %d gates left, %d levels (%d tied inputs; removed %d buffers, "
+                        + "%d double inversions, %d constant and %d duplicate gates, %d dead gates)",
+                System.currentTimeMillis() - startTime, compiled.evalOrder.length, before,
+                compiled.levelStart.length - 1, tied, optimizer.buffers, optimizer.inversions,
+                optimizer.constants, optimizer.merged, optimizer.dead));
+    }
+
+    /**
+     * Replaces the compiled circuit by its renumbered form, see
+     * NodeRenumberer
+     */
+    private void renumberCircuit() {
+        long startTime = System.currentTimeMillis();
+        double[] before = NodeRenumberer.locality(compiled);
+        compiled = new NodeRenumberer(compiled).run();
+        renumbered = true;
+        double[] after = NodeRenumberer.locality(compiled);
+        System.out.println(String.format(
+                "Renumbering took %d ms: mean fan-in distance %.1f -> %.1f nodes, %.3f -> %.3f modelled cache misses per gate",
+                System.currentTimeMillis() - startTime, before[0], after[0], before[1], after[1]));
+    }
+
+    /**
+     * Warns when the first vector does not match the number of inputs
+     * 
+     * @return always true, so callers can remember the check was done
+     */
+    static boolean checkWidth(String[] orderedInputs, VectorSource vectors) {
+        if (orderedInputs.length != vectors.width()) {
             System.err.println("Inputs list and vector length does not match!");
         }
+        return true;
+    }
 
-        int i, j, state;
-        String wireName;
+    /**
+     * Copies the text of the current vector, growing the buffer if needed
+     * 
+     * @return the buffer holding the text
+     */
+    static char[] readText(VectorSource vectors, char[] text) {
+        if (text.length < vectors.width()) {
+            text = new char[vectors.width()];
+        }
+        for (int j = 0; j < vectors.width(); j++) {
+            text[j] = vectors.charAt(j);
+        }
+        return text;
+    }
+
+    /**
+     * Simulates the vectors in the lanes of a pattern-parallel engine: one
+     * vector per lane in a combinational circuit, one sequence between RESET
+     * lines per lane otherwise, see WideRunner. Batches that would fill too
+     * few lanes run on the compiled engine
+     *
+     * @param simulator the engine
+     * @param engine    what evaluates the lanes, for the run log
+     */
+    private void simulateLanes(LaneSimulator simulator, String engine, String[] orderedInputs,
+            String[] orderedOutputs, VectorSource vectors, ResultSink sink) throws IOException {
+        if (threads > 1)
+            System.out.println("The " + mode.name().toLowerCase().replace('_', '-')
+                    + " engine runs on one thread: stepping sequences in lanes instead");
+        WideRunner runner = new WideRunner(simulator, () -> newContext(orderedInputs, orderedOutputs),
+                orderedInputs, orderedOutputs);
+        long startTime = System.currentTimeMillis();
+        runner.run(vectors, sink);
+        System.out.println(String.format("Simulated %d sequences (%d vectors) in %d steps of %d lanes (%s) in %d ms",
+                runner.sequenceCount, runner.vectorCount, runner.sweeps, simulator.lanes(), engine,
+                System.currentTimeMillis() - startTime));
+        if (runner.fallbackVectors > 0)
+            System.out.println(String.format("%d sequences (%d vectors) filled too few lanes: simulated them on the "
+                    + "compiled engine", runner.fallbackSequences, runner.fallbackVectors));
+        if (metrics != null) {
+            metrics.vectors += runner.vectorCount;
+            // A vector on the compiled engine is one sweep as well
+            metrics.addSweeps(compiled, runner.sweeps + runner.fallbackVectors);
+        }
+    }
+
+    /**
+     * Original simulation loop that evaluates the Entity objects directly
+     */
+    private void simulateLegacy(String[] orderedInputs, String[] orderedOutputs, VectorSource vectors,
+            ResultSink sink) throws IOException {
+        int j;
         Gate gate;
+        int stateCount = 0;
+        gate = firstGate;
+        while (gate != null && gate.getType() == GateType.DFF) {
+            stateCount++;
+            gate = gate.nextGate;
+        }
+        byte[] stateValues = new byte[stateCount];
+        byte[] outputValues = new byte[orderedOutputs.length];
+        char[] text = new char[orderedInputs.length];
+        long cycles = 0;
+        boolean checked = false;
         // Cycle through all vector combinations, top to bottom
-        for (i = 0; i < vectors.length; i++) {
+        while (vectors.next()) {
+            if (!checked) {
+                checked = checkWidth(orderedInputs, vectors);
+            }
+            if (vectors.reset()) {
+                for (Entity[] level : sched) {
+                    for (Entity entity : level) {
+                        entity.state = Logic.X;
+                    }
+                }
+            }
             // Assign input states
             for (j = 0; j < orderedInputs.length; j++) {
-                wireName = orderedInputs[j];
-                state = Integer.valueOf(vectors[i][j]);
-                inputs.get(wireName).setState(state);
+                inputs.get(orderedInputs[j]).setState(vectors.state(j));
             }
             // Simulate circuit
             calculateStates();
+            cycles++;
 
-            // Print inputs
-            writer.write("Inputs: ");
-            for (String input : vectors[i]) {
-                writer.write(input);
-            }
-            writer.write("\n");
-
-            // Print states
-            writer.write("State: ");
+            // Record inputs, states and outputs
+            text = readText(vectors, text);
             gate = firstGate;
-            while (gate.getType() == GateType.DFF) {
-                writer.write(String.valueOf(gate.getState()));
+            for (j = 0; j < stateCount; j++) {
+                stateValues[j] = (byte) gate.getState();
                 gate = gate.nextGate;
             }
-            writer.write("\n");
-
-            // Print output states
-            writer.write("OUTPUTS: ");
             for (j = 0; j < orderedOutputs.length; j++) {
-                writer.write(String.valueOf(outputs.get(orderedOutputs[j]).getState()));
+                outputValues[j] = (byte) outputs.get(orderedOutputs[j]).getState();
             }
-            writer.write("\n");
-            writer.write("\n");
+            sink.write(text, vectors.width(), stateValues, outputValues);
+        }
+        if (metrics != null && compiled != null) {
+            metrics.vectors += cycles;
+            metrics.addSweeps(compiled, cycles);
         }
 
     }
@@ -271,9 +941,32 @@ public class Circuit {
      * simulates the circuit
      */
     public void calculateStates() {
-        for (Integer level : sched.keySet()) {
-            for (String entityName : sched.get(level).keySet()) {
-                sched.get(level).get(entityName).calculateState();
+        if (sched.length == 0)
+            return;
+        // Level 0 holds the inputs and DFFs. The DFFs sample their D inputs
+        // all at once, so a DFF wired straight to another DFF (no buffer in
+        // between) still reads the value of the previous cycle
+        Entity[] sources = sched[0];
+        if (sampled.length < sources.length) {
+            sampled = new int[sources.length];
+        }
+        Entity entity;
+        int i;
+        for (i = 0; i < sources.length; i++) {
+            entity = sources[i];
+            if (entity.getType() == GateType.DFF && entity.fanIn != null) {
+                sampled[i] = entity.fanIn.data.getState();
+            }
+        }
+        for (i = 0; i < sources.length; i++) {
+            entity = sources[i];
+            if (entity.getType() == GateType.DFF && entity.fanIn != null) {
+                entity.state = sampled[i];
+            }
+        }
+        for (int level = 1; level < sched.length; level++) {
+            for (Entity levelled : sched[level]) {
+                levelled.calculateState();
             }
         }
     }
@@ -295,21 +988,154 @@ public class Circuit {
      *                VECTOR1, VECTOR2, etc use format {"1","0","0",etc}
      */
     public void mainMethod(String[] inputs, String[] outputs, String[][] vectors, String filePath) {
-        String fileName = extractBetween(filePath) + "_simdata.txt";
-        FileWriter writer;
+        mainMethod(inputs, outputs, new ArrayVectorSource(vectors), filePath);
+    }
+
+    /**
+     * Same as mainMethod with in-memory vectors, but pulls the vectors from a
+     * source (for example a streaming VectorReader)
+     */
+    public void mainMethod(String[] inputs, String[] outputs, VectorSource vectors, String filePath) {
+        String baseName = extractBetween(filePath);
+        String fileName = baseName + "_simdata.txt";
+        try (Writer writer = new BufferedWriter(new FileWriter(fileName), 1 << 16)) {
+            if (snapshotPath != null && mode != SimulationMode.LEGACY) {
+                // Keep the netlist table so the snapshot can reproduce it
+                StringWriter table = new StringWriter();
+                calibrateCircuit(table);
+                writer.write(table.toString());
+                saveSnapshot(inputs, outputs, table.toString());
+            } else {
+                calibrateCircuit(writer);
+            }
+            ResultSink sink = openResultSink(writer, baseName, inputs.length, outputs.length);
+            try {
+                simulateCircuit(inputs, outputs, vectors, sink);
+            } finally {
+                closeSink(sink);
+            }
+        } catch (IOException e) {
+            System.out.println("Error with writer");
+            e.printStackTrace();
+        }
+
+    }
+
+    /**
+     * Grades the vectors with the stuck-at fault simulator and writes the
+     * fault report to <netlist>_faults.txt
+     * 
+     * @param compiled      the compiled circuit
+     * @param orderedInputs input names in vector column order
+     * @param vectors       the vector source, consumed but not closed
+     * @param filePath      the netlist path, names the report file
+     * @param mode          combinational or sequential fault simulation
+     */
+    static void simulateFaults(CompiledCircuit compiled, String[] orderedInputs, VectorSource vectors,
+            String filePath, FaultMode mode) {
+        String fileName = extractBetween(filePath) + "_faults.txt";
+        long startTime = System.currentTimeMillis();
+        FaultList faults = new FaultList(compiled);
+        try (Writer writer = new BufferedWriter(new FileWriter(fileName), 1 << 16)) {
+            if (mode == FaultMode.COMBINATIONAL && compiled.dffs.length > 0) {
+                // Frames graded on their own would take the DFF values of the
+                // good machine, and miss or misdate detections
+                System.out.println("Circuit has DFFs, faults propagate through them: using sequential grading");
+                mode = FaultMode.SEQUENTIAL;
+            }
+            if (mode == FaultMode.SEQUENTIAL) {
+                new ConcurrentFaultSimulator(faults).run(orderedInputs, vectors);
+            } else {
+                new FaultSimulator(faults).run(orderedInputs, vectors);
+            }
+            System.out.println(String.format("Fault simulation took %d ms: %d of %d faults detected (%.2f%%)",
+                    System.currentTimeMillis() - startTime, faults.detectedCount, faults.size(),
+                    faults.coverage()));
+            faults.writeReport(writer);
+        } catch (IOException e) {
+            System.out.println("Error with writer");
+            e.printStackTrace();
+        }
+    }
+
+    private void saveSnapshot(String[] inputs, String[] outputs, String table) {
+        long startTime = System.currentTimeMillis();
         try {
-            writer = new FileWriter(fileName);
-            calibrateCircuit(writer);
-            simulateCircuit(inputs, outputs, vectors, writer);
-            writer.close();
+            CircuitSnapshot.write(snapshotPath, snapshotHash, snapshotVariant(netMode), compiled, inputs, outputs, table);
+            System.out.println("Snapshot saving took " + (System.currentTimeMillis() - startTime) + " ms");
+        } catch (IOException e) {
+            // The snapshot only saves time on the next run, so carry on without it
+            System.err.println("Could not write snapshot " + snapshotPath + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Simulates a circuit loaded from a snapshot. Writes the same
+     * _simdata.txt as mainMethod, without a netlist to calibrate
+     * 
+     * @param snapshot   the loaded snapshot
+     * @param vectors    the vector source, consumed but not closed
+     * @param filePath   the netlist path, names the result files
+     * @param options    the simulation options
+     * @param metrics    run metrics, null when not collected
+     * @param tiedInputs tied input columns for the optimizer, may be null
+     */
+    static void simulateSnapshot(CircuitSnapshot snapshot, VectorSource vectors, String filePath,
+            SimulationOptions options, Metrics metrics, int[] tiedInputs) {
+        Circuit circuit = new Circuit();
+        circuit.compiled = snapshot.compiled;
+        circuit.configure(options);
+        circuit.setMetrics(metrics);
+        circuit.setTiedInputs(tiedInputs);
+        String baseName = extractBetween(filePath);
+        String fileName = baseName + "_simdata.txt";
+        try (Writer writer = new BufferedWriter(new FileWriter(fileName), 1 << 16)) {
+            long phaseStart = metrics != null ? metrics.start() : 0;
+            writer.append(StandardCharsets.ISO_8859_1.decode(snapshot.netlistTable));
+            if (metrics != null)
+                metrics.end(Metrics.WRITE, phaseStart);
+            ResultSink sink = circuit.openResultSink(writer, baseName, snapshot.orderedInputs.length,
+                    snapshot.orderedOutputs.length);
+            try {
+                circuit.simulateCircuit(snapshot.orderedInputs, snapshot.orderedOutputs, vectors, sink);
+            } finally {
+                circuit.closeSink(sink);
+            }
         } catch (IOException e) {
             System.out.println("Error with writer");
             e.printStackTrace();
         }
+    }
 
+    /**
+     * Flushes the last results, timed as part of the write phase
+     */
+    private void closeSink(ResultSink sink) throws IOException {
+        long phaseStart = metrics != null ? metrics.start() : 0;
+        sink.close();
+        if (metrics != null)
+            metrics.end(Metrics.WRITE, phaseStart);
+    }
+
+    /**
+     * Creates the result sink for the configured result format. Text and
+     * compact results follow the netlist table in the _simdata.txt file, binary
+     * results go to their own _simdata.bin file
+     */
+    private ResultSink openResultSink(Writer writer, String baseName, int inputCount, int outputCount)
+            throws IOException {
+        switch (resultFormat) {
+            case COMPACT:
+                return new CompactResultSink(writer, deltaEncoding);
+            case BINARY:
+                return new BinaryResultSink(baseName + "_simdata.bin", inputCount, compiled.stateDffs.length,
+                        outputCount, deltaEncoding);
+            default:
+                return new TextResultSink(writer);
+        }
     }
 
-    private static String extractBetween(String input) {
+    static String extractBetween(String input) {
         // Find the last occurrence of '/' and the first occurrence of '.'
         int start = input.lastIndexOf('/') + 1; // Start right after the last '/'
         int end = input.indexOf('.', start); // Find '.' after the start index
@@ -0,0 +1,256 @@
+package backend;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Binary snapshot of a compiled, levelized circuit, so repeated runs on the
+ * same netlist can skip parsing, buffer creation and levelization.
+ * 
+ * A snapshot is keyed by the SHA-256 of the netlist source and by a variant
+ * string describing options that change the compiled form. Layout (big
+ * endian): "VSCC", int version, 32 byte source hash, variant, then the
+ * CompiledCircuit arrays, the ordered input and output names and the netlist
+ * table printed at the top of _simdata.txt. Strings are an int byte count
+ * followed by ISO-8859-1 bytes
+ */
+public class CircuitSnapshot {
+
+    static final int VERSION = 1;
+    private static final byte[] MAGIC = { 'V', 'S', 'C', 'C' };
+
+    final CompiledCircuit compiled;
+    final String[] orderedInputs;
+    final String[] orderedOutputs;
+    final ByteBuffer netlistTable;
+
+    private CircuitSnapshot(CompiledCircuit compiled, String[] orderedInputs, String[] orderedOutputs,
+            ByteBuffer netlistTable) {
+        this.compiled = compiled;
+        this.orderedInputs = orderedInputs;
+        this.orderedOutputs = orderedOutputs;
+        this.netlistTable = netlistTable;
+    }
+
+    /**
+     * Snapshot file used for a netlist: the netlist name with a .simcache
+     * extension, in the working directory next to the _simdata.txt output
+     * 
+     * @param filePath the netlist path
+     */
+    static String cachePath(String filePath) {
+        return Circuit.extractBetween(filePath) + ".simcache";
+    }
+
+    /**
+     * Content hash of a file
+     * 
+     * @param filePath the file to hash
+     * @return the SHA-256 digest
+     * @throws IOException
+     */
+    static byte[] hashFile(String filePath) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ)) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            long size = channel.size();
+            long position = 0;
+            while (position < size) {
+                long length = Math.min(Integer.MAX_VALUE, size - position);
+                digest.update(channel.map(FileChannel.MapMode.READ_ONLY, position, length));
+                position += length;
+            }
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * Writes a snapshot. The file is written next to its final location first
+     * and then moved into place, so concurrent readers never see a partial
+     * snapshot
+     * 
+     * @param path           the snapshot file
+     * @param hash           hash of the netlist source
+     * @param variant        options that affect the compiled form
+     * @param compiled       the compiled circuit
+     * @param orderedInputs  input names in vector column order
+     * @param orderedOutputs output names in print order
+     * @param netlistTable   text written before the results in _simdata.txt
+     * @throws IOException
+     */
+    static void write(String path, byte[] hash, String variant, CompiledCircuit compiled, String[] orderedInputs,
+            String[] orderedOutputs, String netlistTable) throws IOException {
+        Path target = Paths.get(path).toAbsolutePath();
+        Path temp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp.toFile()), 1 << 16))) {
+            out.write(MAGIC);
+            out.writeInt(VERSION);
+            out.write(hash);
+            writeString(out, variant);
+
+            out.writeInt(compiled.nodeCount);
+            out.writeInt(compiled.fanin.length);
+            out.writeInt(compiled.evalOrder.length);
+            out.writeInt(compiled.levelStart.length);
+            out.writeInt(compiled.dffs.length);
+            out.writeInt(compiled.stateDffs.length);
+            out.write(compiled.types);
+            writeInts(out, compiled.levels);
+            writeInts(out, compiled.faninStart);
+            writeInts(out, compiled.fanin);
+            writeInts(out, compiled.evalOrder);
+            writeInts(out, compiled.levelStart);
+            writeInts(out, compiled.dffs);
+            writeInts(out, compiled.stateDffs);
+            for (String name : compiled.names) {
+                writeString(out, name);
+            }
+            writeIds(out, compiled.inputIds);
+            writeIds(out, compiled.outputIds);
+
+            out.writeInt(orderedInputs.length);
+            for (String name : orderedInputs) {
+                writeString(out, name);
+            }
+            out.writeInt(orderedOutputs.length);
+            for (String name : orderedOutputs) {
+                writeString(out, name);
+            }
+            writeString(out, netlistTable);
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Memory-maps a snapshot if it exists and matches the netlist
+     * 
+     * @param path    the snapshot file
+     * @param hash    hash of the current netlist source
+     * @param variant options that affect the compiled form
+     * @return the snapshot, or null if it is missing, stale or unreadable
+     */
+    static CircuitSnapshot read(String path, byte[] hash, String variant) {
+        Path file = Paths.get(path);
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            byte[] magic = new byte[MAGIC.length];
+            buffer.get(magic);
+            if (!Arrays.equals(magic, MAGIC) || buffer.getInt() != VERSION) {
+                return null;
+            }
+            byte[] storedHash = new byte[hash.length];
+            buffer.get(storedHash);
+            if (!Arrays.equals(storedHash, hash) || !readString(buffer).equals(variant)) {
+                return null;
+            }
+
+            int nodeCount = buffer.getInt();
+            int edgeCount = buffer.getInt();
+            int evalCount = buffer.getInt();
+            int levelStartCount = buffer.getInt();
+            int dffCount = buffer.getInt();
+            int stateDffCount = buffer.getInt();
+            byte[] types = new byte[nodeCount];
+            buffer.get(types);
+            int[] levels = readInts(buffer, nodeCount);
+            int[] faninStart = readInts(buffer, nodeCount + 1);
+            int[] fanin = readInts(buffer, edgeCount);
+            int[] evalOrder = readInts(buffer, evalCount);
+            int[] levelStart = readInts(buffer, levelStartCount);
+            int[] dffs = readInts(buffer, dffCount);
+            int[] stateDffs = readInts(buffer, stateDffCount);
+            String[] names = new String[nodeCount];
+            for (int i = 0; i < nodeCount; i++) {
+                names[i] = readString(buffer);
+            }
+            HashMap<String, Integer> inputIds = readIds(buffer);
+            HashMap<String, Integer> outputIds = readIds(buffer);
+            String[] orderedInputs = new String[buffer.getInt()];
+            for (int i = 0; i < orderedInputs.length; i++) {
+                orderedInputs[i] = readString(buffer);
+            }
+            String[] orderedOutputs = new String[buffer.getInt()];
+            for (int i = 0; i < orderedOutputs.length; i++) {
+                orderedOutputs[i] = readString(buffer);
+            }
+            // The table stays in the mapping and is copied straight to the output
+            int tableLength = buffer.getInt();
+            ByteBuffer netlistTable = buffer.slice();
+            netlistTable.limit(tableLength);
+
+            CompiledCircuit compiled = new CompiledCircuit(names, types, levels, faninStart, fanin, evalOrder,
+                    levelStart, dffs, stateDffs, inputIds, outputIds);
+            return new CircuitSnapshot(compiled, orderedInputs, orderedOutputs, netlistTable);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Ignoring unreadable snapshot " + path + ": " + e);
+            return null;
+        }
+    }
+
+    private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(values.length * 4);
+        bytes.asIntBuffer().put(values);
+        out.write(bytes.array());
+    }
+
+    private static int[] readInts(ByteBuffer buffer, int count) {
+        int[] values = new int[count];
+        buffer.asIntBuffer().get(values);
+        buffer.position(buffer.position() + count * 4);
+        return values;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.ISO_8859_1);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+    private static void writeIds(DataOutputStream out, HashMap<String, Integer> ids) throws IOException {
+        out.writeInt(ids.size());
+        for (Map.Entry<String, Integer> entry : ids.entrySet()) {
+            writeString(out, entry.getKey());
+            out.writeInt(entry.getValue());
+        }
+    }
+
+    private static HashMap<String, Integer> readIds(ByteBuffer buffer) {
+        int count = buffer.getInt();
+        HashMap<String, Integer> ids = new HashMap<>(count * 2);
+        for (int i = 0; i < count; i++) {
+            String name = readString(buffer);
+            ids.put(name, buffer.getInt());
+        }
+        return ids;
+    }
+}
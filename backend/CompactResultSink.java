@@ -0,0 +1,103 @@
+package backend;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes one line per vector: the vector text, then the DFF states and the
+ * outputs packed two bits per value (0, 1, 2 for X) into hex digits, two
+ * values per digit, lowest index in the high bits:
+ * 
+ * <pre>
+ * 0010 14 2
+ * </pre>
+ * 
+ * With delta encoding, the state and output fields after the first vector
+ * list only the values that changed against the previous vector, as
+ * ~index=value pairs separated by commas ("~" alone when nothing changed)
+ */
+public class CompactResultSink implements ResultSink {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final Writer writer;
+    private final boolean delta;
+    private final StringBuilder line = new StringBuilder(256);
+    private byte[] previousStates;
+    private byte[] previousOutputs;
+
+    /**
+     * @param writer destination, flushed but not closed by close()
+     * @param delta  encode states and outputs against the previous vector
+     */
+    CompactResultSink(Writer writer, boolean delta) throws IOException {
+        this.writer = writer;
+        this.delta = delta;
+        writer.write(delta ? "# compact delta results\n" : "# compact results\n");
+    }
+
+    @Override
+    public void write(char[] inputs, int inputCount, byte[] states, byte[] outputs) throws IOException {
+        line.setLength(0);
+        line.append(inputs, 0, inputCount);
+        line.append(' ');
+        if (delta && previousStates != null) {
+            appendDelta(states, previousStates);
+            line.append(' ');
+            appendDelta(outputs, previousOutputs);
+        } else {
+            appendPacked(states);
+            line.append(' ');
+            appendPacked(outputs);
+        }
+        line.append('\n');
+        writer.append(line);
+        if (delta) {
+            if (previousStates == null) {
+                previousStates = new byte[states.length];
+                previousOutputs = new byte[outputs.length];
+            }
+            System.arraycopy(states, 0, previousStates, 0, states.length);
+            System.arraycopy(outputs, 0, previousOutputs, 0, outputs.length);
+        }
+    }
+
+    private void appendPacked(byte[] values) {
+        if (values.length == 0) {
+            line.append('-');
+            return;
+        }
+        int digit;
+        for (int i = 0; i < values.length; i += 2) {
+            digit = code(values[i]) << 2;
+            if (i + 1 < values.length)
+                digit |= code(values[i + 1]);
+            line.append(HEX[digit]);
+        }
+    }
+
+    private void appendDelta(byte[] values, byte[] previous) {
+        line.append('~');
+        boolean first = true;
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != previous[i]) {
+                if (!first)
+                    line.append(',');
+                line.append(i).append('=').append(code(values[i]));
+                first = false;
+            }
+        }
+    }
+
+    /**
+     * Two bit code of a state: 0, 1, or 2 for X
+     */
+    static int code(byte state) {
+        return state == Logic.X ? 2 : state;
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.flush();
+    }
+}
@@ -0,0 +1,289 @@
+package backend;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+/**
+ * Flat snapshot of a calibrated circuit. Every entity becomes a dense node id,
+ * fan-ins are stored in compressed sparse row form (faninStart/fanin) and the
+ * levelized schedule becomes a single int array, so the simulators can run
+ * without touching the Entity objects or their DataWrapper lists.
+ */
+public class CompiledCircuit {
+
+    // Node type codes, one byte per node
+    static final byte INPUT = 0;
+    static final byte OUTPUT = 1;
+    static final byte WIRE = 2;
+    static final byte AND = 3;
+    static final byte NAND = 4;
+    static final byte OR = 5;
+    static final byte NOR = 6;
+    static final byte NOT = 7;
+    static final byte DFF = 8;
+    static final byte BUF = 9;
+
+    final int nodeCount;
+    final String[] names;
+    final byte[] types;
+    final int[] levels;
+    // Fan-ins of node n are fanin[faninStart[n]] .. fanin[faninStart[n + 1] - 1]
+    final int[] faninStart;
+    final int[] fanin;
+    // Readers of node n are fanout[fanoutStart[n]] .. fanout[fanoutStart[n + 1] - 1]
+    final int[] fanoutStart;
+    final int[] fanout;
+    // Combinational nodes in ascending level order, levelStart[l] is the first
+    // entry of level l in evalOrder
+    final int[] evalOrder;
+    final int[] levelStart;
+    // DFFs sampled at the start of every cycle
+    final int[] dffs;
+    // Leading DFFs of the gate list, printed on the "State:" line
+    final int[] stateDffs;
+    final HashMap<String, Integer> inputIds;
+    final HashMap<String, Integer> outputIds;
+
+    /**
+     * Freezes a calibrated circuit (buffers created and levels calculated) into
+     * flat arrays
+     * 
+     * @param circuit the calibrated circuit
+     */
+    CompiledCircuit(Circuit circuit) {
+        IdentityHashMap<Entity, Integer> idOf = new IdentityHashMap<>();
+        ArrayList<Entity> nodes = new ArrayList<>();
+
+        // Number inputs first, then gates in list order, then outputs
+        for (Wire wire : circuit.inputs.values()) {
+            register(wire, idOf, nodes);
+        }
+        Gate gate = circuit.firstGate;
+        while (gate != null) {
+            register(gate, idOf, nodes);
+            gate = gate.nextGate;
+        }
+        for (Wire wire : circuit.outputs.values()) {
+            register(wire, idOf, nodes);
+        }
+        // Pick up anything only reachable through connections (dangling wires)
+        DataWrapper<Entity> ptr;
+        for (int i = 0; i < nodes.size(); i++) {
+            ptr = nodes.get(i).fanIn;
+            while (ptr != null) {
+                register(ptr.data, idOf, nodes);
+                ptr = ptr.next;
+            }
+            ptr = nodes.get(i).fanOut;
+            while (ptr != null) {
+                register(ptr.data, idOf, nodes);
+                ptr = ptr.next;
+            }
+        }
+
+        nodeCount = nodes.size();
+        names = new String[nodeCount];
+        types = new byte[nodeCount];
+        levels = new int[nodeCount];
+        faninStart = new int[nodeCount + 1];
+        int edges = 0;
+        for (int i = 0; i < nodeCount; i++) {
+            Entity entity = nodes.get(i);
+            names[i] = entity.getName();
+            types[i] = typeCode(entity.getType());
+            levels[i] = entity.getLevel();
+            faninStart[i] = edges;
+            edges += countEntries(entity.fanIn);
+        }
+        faninStart[nodeCount] = edges;
+        fanin = new int[edges];
+        for (int i = 0; i < nodeCount; i++) {
+            int k = faninStart[i];
+            ptr = nodes.get(i).fanIn;
+            while (ptr != null) {
+                if (ptr.data != null)
+                    fanin[k++] = idOf.get(ptr.data);
+                ptr = ptr.next;
+            }
+        }
+
+        int[][] inverted = invert(faninStart, fanin);
+        fanoutStart = inverted[0];
+        fanout = inverted[1];
+
+        // Flatten the schedule, which is already in ascending level order
+        Entity[][] sched = circuit.sched;
+        int[] order = new int[nodeCount];
+        int[] dffList = new int[nodeCount];
+        int orderCount = 0;
+        int dffCount = 0;
+        levelStart = new int[Math.max(sched.length, 1) + 1];
+        int next = 0;
+        for (int level = 0; level < sched.length; level++) {
+            levelStart[next++] = orderCount;
+            for (Entity entity : sched[level]) {
+                int id = idOf.get(entity);
+                if (faninStart[id] == faninStart[id + 1])
+                    continue;
+                if (types[id] == DFF) {
+                    dffList[dffCount++] = id;
+                } else if (types[id] != INPUT && types[id] != WIRE) {
+                    order[orderCount++] = id;
+                }
+            }
+        }
+        while (next < levelStart.length) {
+            levelStart[next++] = orderCount;
+        }
+        evalOrder = Arrays.copyOf(order, orderCount);
+        dffs = Arrays.copyOf(dffList, dffCount);
+
+        int stateCount = 0;
+        gate = circuit.firstGate;
+        while (gate != null && gate.getType() == GateType.DFF) {
+            dffList[stateCount++] = idOf.get(gate);
+            gate = gate.nextGate;
+        }
+        stateDffs = Arrays.copyOf(dffList, stateCount);
+
+        inputIds = new HashMap<>(circuit.inputs.size() * 2);
+        for (Wire wire : circuit.inputs.values()) {
+            inputIds.put(wire.getName(), idOf.get(wire));
+        }
+        outputIds = new HashMap<>(circuit.outputs.size() * 2);
+        for (Wire wire : circuit.outputs.values()) {
+            outputIds.put(wire.getName(), idOf.get(wire));
+        }
+    }
+
+    /**
+     * Builds a compiled circuit straight from its arrays, for example when it
+     * is loaded from a snapshot or rewritten by a netlist pass. Fan-outs are
+     * derived from the fan-ins
+     */
+    CompiledCircuit(String[] names, byte[] types, int[] levels, int[] faninStart, int[] fanin, int[] evalOrder,
+            int[] levelStart, int[] dffs, int[] stateDffs, HashMap<String, Integer> inputIds,
+            HashMap<String, Integer> outputIds) {
+        this.nodeCount = types.length;
+        this.names = names;
+        this.types = types;
+        this.levels = levels;
+        this.faninStart = faninStart;
+        this.fanin = fanin;
+        int[][] inverted = invert(faninStart, fanin);
+        this.fanoutStart = inverted[0];
+        this.fanout = inverted[1];
+        this.evalOrder = evalOrder;
+        this.levelStart = levelStart;
+        this.dffs = dffs;
+        this.stateDffs = stateDffs;
+        this.inputIds = inputIds;
+        this.outputIds = outputIds;
+    }
+
+    /**
+     * Inverts fan-in lists into fan-out lists so both are consistent
+     * 
+     * @return {fanoutStart, fanout}
+     */
+    static int[][] invert(int[] faninStart, int[] fanin) {
+        int nodeCount = faninStart.length - 1;
+        int[] fanoutStart = new int[nodeCount + 1];
+        for (int i = 0; i < fanin.length; i++) {
+            fanoutStart[fanin[i] + 1]++;
+        }
+        for (int i = 0; i < nodeCount; i++) {
+            fanoutStart[i + 1] += fanoutStart[i];
+        }
+        int[] fanout = new int[fanin.length];
+        int[] fill = Arrays.copyOf(fanoutStart, nodeCount);
+        for (int i = 0; i < nodeCount; i++) {
+            for (int k = faninStart[i]; k < faninStart[i + 1]; k++) {
+                fanout[fill[fanin[k]]++] = i;
+            }
+        }
+        return new int[][] { fanoutStart, fanout };
+    }
+
+    private static void register(Entity entity, IdentityHashMap<Entity, Integer> idOf, ArrayList<Entity> nodes) {
+        if (entity != null && !idOf.containsKey(entity)) {
+            idOf.put(entity, nodes.size());
+            nodes.add(entity);
+        }
+    }
+
+    private static int countEntries(DataWrapper<Entity> list) {
+        int count = 0;
+        while (list != null) {
+            if (list.data != null)
+                count++;
+            list = list.next;
+        }
+        return count;
+    }
+
+    /**
+     * Converts a GateType into the byte code used in the types array
+     * 
+     * @param type the gate type
+     * @return the node type code
+     */
+    static byte typeCode(GateType type) {
+        switch (type) {
+            case INPUT:
+                return INPUT;
+            case OUTPUT:
+                return OUTPUT;
+            case AND:
+                return AND;
+            case NAND:
+                return NAND;
+            case OR:
+                return OR;
+            case NOR:
+                return NOR;
+            case NOT:
+                return NOT;
+            case DFF:
+                return DFF;
+            case BUF:
+                return BUF;
+            default:
+                return WIRE;
+        }
+    }
+
+    /**
+     * Looks up the node ids of an ordered list of input names
+     * 
+     * @param orderedInputs input names, format {"G0","G1", etc}
+     * @return node ids in the same order
+     */
+    int[] resolveInputs(String[] orderedInputs) {
+        return resolve(orderedInputs, inputIds, "input");
+    }
+
+    /**
+     * Looks up the node ids of an ordered list of output names
+     * 
+     * @param orderedOutputs output names, format {"G17", etc}
+     * @return node ids in the same order
+     */
+    int[] resolveOutputs(String[] orderedOutputs) {
+        return resolve(orderedOutputs, outputIds, "output");
+    }
+
+    private static int[] resolve(String[] names, HashMap<String, Integer> ids, String kind) {
+        int[] resolved = new int[names.length];
+        for (int i = 0; i < names.length; i++) {
+            Integer id = ids.get(names[i]);
+            if (id == null) {
+                throw new IllegalArgumentException("Unknown " + kind + ": " + names[i]);
+            }
+            resolved[i] = id;
+        }
+        return resolved;
+    }
+}
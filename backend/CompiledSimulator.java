@@ -0,0 +1,145 @@
+package backend;
+
+import java.util.Arrays;
+
+/**
+ * Simulation engine that runs over the flat arrays of a CompiledCircuit. All
+ * net values live in a single byte array indexed by node id, using the same
+ * 0 / 1 / 4 (X) encoding as Entity.
+ */
+public class CompiledSimulator {
+
+    final CompiledCircuit circuit;
+    final byte[] states;
+    private final byte[] sampled;
+
+    CompiledSimulator(CompiledCircuit circuit) {
+        this(circuit, circuit.nodeCount);
+    }
+
+    /**
+     * @param circuit    the compiled circuit
+     * @param stateCount size of the state array, 0 for engines that keep the
+     *                   states in another form and override getState
+     */
+    CompiledSimulator(CompiledCircuit circuit, int stateCount) {
+        this.circuit = circuit;
+        this.states = new byte[stateCount];
+        this.sampled = new byte[circuit.dffs.length];
+        Arrays.fill(states, Logic.X);
+    }
+
+    void setState(int node, int state) {
+        states[node] = (byte) state;
+    }
+
+    int getState(int node) {
+        return states[node];
+    }
+
+    /**
+     * Copies the state of every node, indexed by node id
+     * 
+     * @return the copy, owned by the caller
+     */
+    byte[] saveStates() {
+        return states.clone();
+    }
+
+    /**
+     * Sets every node back to X, the state before the first vector
+     */
+    void reset() {
+        Arrays.fill(states, Logic.X);
+    }
+
+    /**
+     * Releases what the engine holds besides memory, such as worker threads.
+     * The states can still be read afterwards
+     */
+    void close() {
+    }
+
+    /**
+     * Simulates one clock cycle: DFFs capture their inputs, then every
+     * combinational node is evaluated in level order. Input states must be
+     * assigned beforehand
+     */
+    void step() {
+        clockDffs();
+        evaluate(0, circuit.evalOrder.length);
+    }
+
+    /**
+     * Loads every DFF with the value on its D input. Values are sampled first so
+     * DFFs feeding each other directly still behave like a shift register
+     */
+    void clockDffs() {
+        final int[] dffs = circuit.dffs;
+        final int[] faninStart = circuit.faninStart;
+        final int[] fanin = circuit.fanin;
+        for (int i = 0; i < dffs.length; i++) {
+            sampled[i] = states[fanin[faninStart[dffs[i]]]];
+        }
+        for (int i = 0; i < dffs.length; i++) {
+            states[dffs[i]] = sampled[i];
+        }
+    }
+
+    /**
+     * Evaluates a slice of the levelized evaluation order
+     * 
+     * @param from first index into evalOrder (inclusive)
+     * @param to   last index into evalOrder (exclusive)
+     */
+    void evaluate(int from, int to) {
+        final int[] order = circuit.evalOrder;
+        for (int i = from; i < to; i++) {
+            evaluateNode(order[i]);
+        }
+    }
+
+    /**
+     * Computes and stores the state of a single combinational node
+     * 
+     * @param node the node id
+     * @return the new state of the node
+     */
+    int evaluateNode(int node) {
+        final byte[] states = this.states;
+        final int[] fanin = circuit.fanin;
+        int k = circuit.faninStart[node];
+        final int end = circuit.faninStart[node + 1];
+        int value = states[fanin[k++]];
+        switch (circuit.types[node]) {
+            case CompiledCircuit.BUF:
+            case CompiledCircuit.OUTPUT:
+                break;
+            case CompiledCircuit.NOT:
+                value = Logic.not(value);
+                break;
+            case CompiledCircuit.AND:
+                while (k < end)
+                    value = Logic.and(value, states[fanin[k++]]);
+                break;
+            case CompiledCircuit.NAND:
+                while (k < end)
+                    value = Logic.and(value, states[fanin[k++]]);
+                value = Logic.not(value);
+                break;
+            case CompiledCircuit.OR:
+                while (k < end)
+                    value = Logic.or(value, states[fanin[k++]]);
+                break;
+            case CompiledCircuit.NOR:
+                while (k < end)
+                    value = Logic.or(value, states[fanin[k++]]);
+                value = Logic.not(value);
+                break;
+            default:
+                return states[node];
+        }
+        states[node] = (byte) value;
+        return value;
+    }
+}
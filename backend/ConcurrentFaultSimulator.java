@@ -0,0 +1,454 @@
+package backend;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Concurrent stuck-at fault simulator for sequential circuits.
+ *
+ * The good machine is simulated with the compiled engine. Alongside it every
+ * node carries a list of the faulty machines whose value on that node differs
+ * from the good one, sorted by fault index. A node is re-evaluated only when
+ * the good value or the divergence list of one of its fan-ins changed, and
+ * then only for the faults found in those lists plus the faults sitting on the
+ * node itself. DFFs copy the divergence list of their D input when clocked,
+ * so a fault effect captured in a DFF is tracked over as many cycles as it
+ * lasts. A fault is detected when a primary output is 0 in its machine and 1
+ * in the good one, or the other way around, and is dropped from every list
+ * from then on.
+ */
+public class ConcurrentFaultSimulator extends CompiledSimulator {
+
+    private static final int[] NO_FAULTS = new int[0];
+    private static final byte[] NO_VALUES = new byte[0];
+
+    final FaultList faults;
+
+    // Divergences of node n: faults listIds[n][0 .. listCount[n] - 1] with
+    // faulty values listValues[n][...]
+    private final int[][] listIds;
+    private final byte[][] listValues;
+    private final int[] listCount;
+
+    // List being built for the current node
+    private int[] buildIds = new int[64];
+    private byte[] buildValues = new byte[64];
+    private int buildCount;
+    private final int[] cursor;
+    private final int[] pinValues;
+    private final int[][] sourceIds;
+    private final byte[][] sourceValues;
+    private final int[] sourceCount;
+    // Detected faults, one bit each, skipped wherever they still show up
+    private final long[] dropped;
+
+    // New DFF lists, built for all DFFs before any of them is loaded
+    private final int[][] dffIds;
+    private final byte[][] dffValues;
+    private final int[] dffCount;
+    private final byte[] dffGood;
+
+    // Work queue of level l is pending[levelStart[l]] .. pending[levelStart[l] + pendingCount[l] - 1]
+    private final int[] pending;
+    private final int[] pendingCount;
+    private final boolean[] queued;
+    private final boolean[] evaluable;
+    // Nodes with a path to a primary output, through DFFs or not
+    private final boolean[] observable;
+    private boolean firstCycle = true;
+    private int vector;
+
+    ConcurrentFaultSimulator(FaultList faults) {
+        super(faults.circuit);
+        this.faults = faults;
+        int nodeCount = circuit.nodeCount;
+        this.listIds = new int[nodeCount][];
+        this.listValues = new byte[nodeCount][];
+        this.listCount = new int[nodeCount];
+        Arrays.fill(listIds, NO_FAULTS);
+        Arrays.fill(listValues, NO_VALUES);
+
+        int width = 1;
+        for (int node = 0; node < nodeCount; node++) {
+            width = Math.max(width, circuit.faninStart[node + 1] - circuit.faninStart[node]);
+        }
+        this.cursor = new int[width];
+        this.pinValues = new int[width];
+        this.sourceIds = new int[width][];
+        this.sourceValues = new byte[width][];
+        this.sourceCount = new int[width];
+        this.dropped = new long[(faults.size() + 63) >>> 6];
+        for (int f = 0; f < faults.size(); f++) {
+            if (faults.detectedBy[f] != 0)
+                dropped[f >>> 6] |= 1L << f;
+        }
+
+        int dffTotal = circuit.dffs.length;
+        this.dffIds = new int[dffTotal][];
+        this.dffValues = new byte[dffTotal][];
+        this.dffCount = new int[dffTotal];
+        this.dffGood = new byte[dffTotal];
+        Arrays.fill(dffIds, NO_FAULTS);
+        Arrays.fill(dffValues, NO_VALUES);
+
+        this.pending = new int[circuit.evalOrder.length];
+        this.pendingCount = new int[circuit.levelStart.length];
+        this.queued = new boolean[nodeCount];
+        this.evaluable = new boolean[nodeCount];
+        for (int node : circuit.evalOrder) {
+            evaluable[node] = true;
+        }
+
+        // Walk back from the outputs over every fan-in, DFFs included
+        this.observable = new boolean[nodeCount];
+        int[] stack = new int[nodeCount];
+        int top = 0;
+        for (int node : circuit.outputIds.values()) {
+            if (!observable[node]) {
+                observable[node] = true;
+                stack[top++] = node;
+            }
+        }
+        while (top > 0) {
+            int node = stack[--top];
+            for (int k = circuit.faninStart[node]; k < circuit.faninStart[node + 1]; k++) {
+                int src = circuit.fanin[k];
+                if (!observable[src]) {
+                    observable[src] = true;
+                    stack[top++] = src;
+                }
+            }
+        }
+    }
+
+    /**
+     * Grades the vectors, applied as one sequence up to each RESET line,
+     * against the fault list
+     *
+     * @param orderedInputs input names in vector column order
+     * @param vectors       the vector source, consumed but not closed
+     * @throws IOException
+     */
+    void run(String[] orderedInputs, VectorSource vectors) throws IOException {
+        final int[] inputIds = circuit.resolveInputs(orderedInputs);
+        boolean checked = false;
+        while (vectors.next()) {
+            if (!checked) {
+                if (orderedInputs.length != vectors.width()) {
+                    System.err.println("Inputs list and vector length does not match!");
+                }
+                checked = true;
+            }
+            vector++;
+            if (vectors.reset()) {
+                reset();
+            }
+            clockFaultyDffs();
+            for (int j = 0; j < inputIds.length; j++) {
+                applyInput(inputIds[j], vectors.state(j));
+            }
+            if (firstCycle) {
+                firstCycle = false;
+                for (int node : circuit.evalOrder) {
+                    process(node);
+                }
+                // Everything was evaluated, so drop what got queued meanwhile
+                Arrays.fill(queued, false);
+                Arrays.fill(pendingCount, 0);
+            } else {
+                final int[] levelStart = circuit.levelStart;
+                for (int level = 0; level < pendingCount.length; level++) {
+                    for (int i = 0; i < pendingCount[level]; i++) {
+                        int node = pending[levelStart[level] + i];
+                        queued[node] = false;
+                        process(node);
+                    }
+                    pendingCount[level] = 0;
+                }
+            }
+        }
+        faults.vectorCount = vector;
+    }
+
+    /**
+     * Starts a new sequence: every machine goes back to all X, so no faulty
+     * machine differs from the good one
+     */
+    @Override
+    void reset() {
+        super.reset();
+        Arrays.fill(listCount, 0);
+        firstCycle = true;
+    }
+
+    /**
+     * Loads every DFF, good and faulty machines alike, with its D input
+     */
+    private void clockFaultyDffs() {
+        final int[] dffs = circuit.dffs;
+        for (int i = 0; i < dffs.length; i++) {
+            int dff = dffs[i];
+            int good = states[circuit.fanin[circuit.faninStart[dff]]];
+            build(dff, good);
+            dffGood[i] = (byte) good;
+            if (dffIds[i].length < buildCount) {
+                dffIds[i] = new int[buildCount + (buildCount >> 1)];
+                dffValues[i] = new byte[dffIds[i].length];
+            }
+            System.arraycopy(buildIds, 0, dffIds[i], 0, buildCount);
+            System.arraycopy(buildValues, 0, dffValues[i], 0, buildCount);
+            dffCount[i] = buildCount;
+        }
+        for (int i = 0; i < dffs.length; i++) {
+            int dff = dffs[i];
+            boolean changed = states[dff] != dffGood[i];
+            states[dff] = dffGood[i];
+            // Swap the freshly built list in, keeping the old arrays for reuse
+            if (!sameList(dff, dffIds[i], dffValues[i], dffCount[i])) {
+                changed = true;
+                int[] ids = listIds[dff];
+                byte[] values = listValues[dff];
+                listIds[dff] = dffIds[i];
+                listValues[dff] = dffValues[i];
+                listCount[dff] = dffCount[i];
+                dffIds[i] = ids;
+                dffValues[i] = values;
+            }
+            if (changed)
+                schedule(dff);
+        }
+    }
+
+    /**
+     * Assigns an input and the divergences of the faults on it
+     */
+    private void applyInput(int node, int state) {
+        boolean changed = states[node] != state;
+        states[node] = (byte) state;
+        buildCount = 0;
+        for (int f = faults.start[node]; f < faults.start[node + 1]; f++) {
+            if (!isDropped(dropped, f) && faults.value[f] != state) {
+                append(f, faults.value[f]);
+            }
+        }
+        if (store(node) || changed)
+            schedule(node);
+    }
+
+    /**
+     * Re-evaluates a combinational node in the good machine and in every
+     * faulty machine that differs on one of its fan-ins or sits on the node
+     */
+    private void process(int node) {
+        int before = states[node];
+        int good = evaluateNode(node);
+        build(node, good);
+        if (circuit.types[node] == CompiledCircuit.OUTPUT && good != Logic.X) {
+            for (int i = 0; i < buildCount; i++) {
+                if (buildValues[i] != Logic.X) {
+                    drop(buildIds[i]);
+                }
+            }
+        }
+        if (store(node) || before != good)
+            schedule(node);
+    }
+
+    /**
+     * Builds the divergence list of a node into buildIds / buildValues by
+     * merging the lists of its fan-ins with the faults on the node itself
+     *
+     * @param node the node
+     * @param good the node's value in the good machine
+     */
+    private void build(int node, int good) {
+        final int start = circuit.faninStart[node];
+        final int width = circuit.faninStart[node + 1] - start;
+        final int localEnd = faults.start[node + 1];
+        final long[] dropped = this.dropped;
+        final byte type = circuit.types[node];
+        int local = faults.start[node];
+        buildCount = 0;
+        // Divergences that can never reach an output are not worth tracking
+        if (!observable[node])
+            return;
+        for (int p = 0; p < width; p++) {
+            int src = circuit.fanin[start + p];
+            cursor[p] = 0;
+            sourceIds[p] = listIds[src];
+            sourceValues[p] = listValues[src];
+            sourceCount[p] = listCount[src];
+        }
+        if (width == 1) {
+            // Buffers, inverters, outputs and DFFs map every value one to one,
+            // so a fault differs on the output exactly when it differs on the input
+            final int[] ids = sourceIds[0];
+            final byte[] values = sourceValues[0];
+            final int count = sourceCount[0];
+            final boolean invert = type == CompiledCircuit.NOT;
+            int c = 0;
+            while (c < count || local < localEnd) {
+                int fault = c < count ? ids[c] : Integer.MAX_VALUE;
+                if (local < localEnd && local <= fault) {
+                    int value;
+                    if (faults.pin[local] < 0) {
+                        value = faults.value[local];
+                    } else {
+                        value = invert ? Logic.not(faults.value[local]) : faults.value[local];
+                    }
+                    if (local == fault)
+                        c++;
+                    if (!isDropped(dropped, local) && value != good)
+                        append(local, value);
+                    local++;
+                } else {
+                    if (!isDropped(dropped, fault))
+                        append(fault, invert ? Logic.not(values[c]) : values[c]);
+                    c++;
+                }
+            }
+            return;
+        }
+        while (true) {
+            // Next fault index in any of the sorted lists
+            int fault = Integer.MAX_VALUE;
+            for (int p = 0; p < width; p++) {
+                int c = cursor[p];
+                final int[] ids = sourceIds[p];
+                while (c < sourceCount[p] && isDropped(dropped, ids[c]))
+                    c++;
+                cursor[p] = c;
+                if (c < sourceCount[p] && ids[c] < fault)
+                    fault = ids[c];
+            }
+            while (local < localEnd && isDropped(dropped, local))
+                local++;
+            if (local < localEnd && local < fault)
+                fault = local;
+            if (fault == Integer.MAX_VALUE)
+                break;
+
+            // Inputs of the node in that faulty machine
+            for (int p = 0; p < width; p++) {
+                int c = cursor[p];
+                if (c < sourceCount[p] && sourceIds[p][c] == fault) {
+                    pinValues[p] = sourceValues[p][c];
+                    cursor[p] = c + 1;
+                } else {
+                    pinValues[p] = states[circuit.fanin[start + p]];
+                }
+            }
+            int value;
+            if (fault == local && local < localEnd) {
+                local++;
+                if (faults.pin[fault] < 0) {
+                    value = faults.value[fault];
+                } else {
+                    pinValues[faults.pin[fault] - start] = faults.value[fault];
+                    value = combine(type, width);
+                }
+            } else {
+                value = combine(type, width);
+            }
+            if (value != good)
+                append(fault, value);
+        }
+    }
+
+    private static boolean isDropped(long[] dropped, int fault) {
+        return (dropped[fault >>> 6] & 1L << fault) != 0;
+    }
+
+    private void drop(int fault) {
+        faults.detect(fault, vector);
+        dropped[fault >>> 6] |= 1L << fault;
+    }
+
+    /**
+     * Applies a node's function to pinValues[0 .. width - 1]. DFFs pass their
+     * D input through
+     */
+    private int combine(byte type, int width) {
+        int value = pinValues[0];
+        switch (type) {
+            case CompiledCircuit.NOT:
+                return Logic.not(value);
+            case CompiledCircuit.AND:
+            case CompiledCircuit.NAND:
+                for (int p = 1; p < width; p++)
+                    value = Logic.and(value, pinValues[p]);
+                return type == CompiledCircuit.NAND ? Logic.not(value) : value;
+            case CompiledCircuit.OR:
+            case CompiledCircuit.NOR:
+                for (int p = 1; p < width; p++)
+                    value = Logic.or(value, pinValues[p]);
+                return type == CompiledCircuit.NOR ? Logic.not(value) : value;
+            default:
+                return value;
+        }
+    }
+
+    private void append(int fault, int value) {
+        if (buildCount == buildIds.length) {
+            buildIds = Arrays.copyOf(buildIds, Math.max(64, buildCount * 2));
+            buildValues = Arrays.copyOf(buildValues, buildIds.length);
+        }
+        buildIds[buildCount] = fault;
+        buildValues[buildCount] = (byte) value;
+        buildCount++;
+    }
+
+    /**
+     * Replaces a node's list with the one just built
+     *
+     * @return true if the list changed
+     */
+    private boolean store(int node) {
+        if (sameList(node, buildIds, buildValues, buildCount))
+            return false;
+        if (buildIds.length > 2 * buildCount + 64) {
+            // Keep the big buffer for building, give the node a snug copy
+            if (listIds[node].length < buildCount) {
+                listIds[node] = new int[buildCount + (buildCount >> 1)];
+                listValues[node] = new byte[listIds[node].length];
+            }
+            System.arraycopy(buildIds, 0, listIds[node], 0, buildCount);
+            System.arraycopy(buildValues, 0, listValues[node], 0, buildCount);
+            listCount[node] = buildCount;
+            return true;
+        }
+        // Swap arrays, the old list becomes the next build buffer
+        int[] ids = listIds[node];
+        byte[] values = listValues[node];
+        listIds[node] = buildIds;
+        listValues[node] = buildValues;
+        listCount[node] = buildCount;
+        buildIds = ids;
+        buildValues = values;
+        return true;
+    }
+
+    private boolean sameList(int node, int[] ids, byte[] values, int count) {
+        if (listCount[node] != count)
+            return false;
+        return Arrays.equals(listIds[node], 0, count, ids, 0, count)
+                && Arrays.equals(listValues[node], 0, count, values, 0, count);
+    }
+
+    /**
+     * Queues every evaluable reader of a node that changed
+     */
+    private void schedule(int node) {
+        final int[] fanout = circuit.fanout;
+        final int end = circuit.fanoutStart[node + 1];
+        int reader, level;
+        for (int k = circuit.fanoutStart[node]; k < end; k++) {
+            reader = fanout[k];
+            if (evaluable[reader] && !queued[reader]) {
+                queued[reader] = true;
+                level = circuit.levels[reader];
+                pending[circuit.levelStart[level] + pendingCount[level]++] = reader;
+            }
+        }
+    }
+}
@@ -1,7 +1,5 @@
 package backend;
 
-import java.util.HashMap;
-
 public class Entity {
 
     String name;
@@ -9,6 +7,8 @@ public class Entity {
     DataWrapper<Entity> fanIn, fanOut;
     int state;
     int level;
+    // Unprocessed fan-in count used while levelizing, -1 outside levelization
+    int pendingFanIn;
 
     Entity(String name, GateType type) {
         this.name = name;
@@ -17,6 +17,7 @@ public class Entity {
         this.fanOut = null;
         this.level = -1;
         this.state = 4;
+        this.pendingFanIn = -1;
     }
 
     public String printClass() {
@@ -111,51 +112,6 @@ public class Entity {
         }
     }
 
-    /**
-     * 
-     * @param level
-     * @param sched         hashmap that organizes each entity by level
-     */
-    void calculateLevels(int newLevel, HashMap<Integer, HashMap<String, Entity>> sched) {
-        // If we reach a flip flop, stop and do not calibrate
-        if (this.type == GateType.DFF)
-            return;
-        // If entity's max level is lower its new level, calibrate and traverse outputs
-        if (this.level < newLevel) {
-            int oldLevel = this.level;
-            this.level = newLevel;
-            recordLevel(oldLevel, newLevel, sched);
-            DataWrapper<Entity> ptr = this.fanOut;
-            while (ptr != null) {
-                if (ptr.data != null)
-                    ptr.data.calculateLevels(newLevel + 1, sched);
-                ptr = ptr.next;
-            }
-        }
-    }
-
-    /**
-     * Helper method for calculateLevels that checks to see if the entity is already
-     * logged into the sched data set,
-     * and updates the value accordingly
-     * 
-     * @param oldLevel 
-     * @param newLevel the 
-     * @param sched the scheduling database
-     */
-    void recordLevel(int oldLevel, int newLevel, HashMap<Integer, HashMap<String, Entity>> sched) {
-        // If the entity was previously logged into sched, remove it
-        if (sched.containsKey(oldLevel) && sched.get(oldLevel).containsKey(this.name)) {
-            sched.get(oldLevel).remove(this.name);
-        }
-        // If sched does not have a map for current level, create it
-        if (!sched.containsKey(newLevel)) {
-            sched.put(Integer.valueOf(newLevel), new HashMap<>(100));
-        }
-        // Add entity to new spot in sched
-        sched.get(newLevel).put(this.name, this);
-    }
-
     void calculateState() {
         if (this.type == GateType.INPUT || this.fanIn == null) {
             return;
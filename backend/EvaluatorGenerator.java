@@ -0,0 +1,385 @@
+package backend;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Generates the straight-line evaluators of GeneratedSimulator. Every
+ * combinational node of the evaluation order becomes a handful of bytecodes
+ * that read its fan-ins from the state array, combine them and store the
+ * result, with no dispatch on the gate type, no loops and no branches. The
+ * class files are written by hand and defined as hidden classes, so no
+ * compiler or bytecode library is needed.
+ *
+ * Nodes are split into static methods of at most CHUNK_BYTES bytes, below
+ * the size (8000 bytes) above which HotSpot refuses to compile a method.
+ * Node ids above 32767 need an int constant, so a class is closed once its
+ * constant pool gets close to the 65535 entry limit and the rest of the
+ * circuit continues in a new class.
+ */
+public class EvaluatorGenerator {
+
+    // Largest chunk method, in bytes of code
+    static final int CHUNK_BYTES = 7000;
+    // Constant pool entries after which no new chunk is started in a class
+    private static final int POOL_LIMIT = 60000;
+    private static final int CLASS_VERSION = 61;
+
+    // Opcodes
+    private static final int ICONST_0 = 0x03;
+    private static final int ICONST_1 = 0x04;
+    private static final int ICONST_2 = 0x05;
+    private static final int ICONST_4 = 0x07;
+    private static final int BIPUSH = 0x10;
+    private static final int SIPUSH = 0x11;
+    private static final int LDC = 0x12;
+    private static final int LDC_W = 0x13;
+    private static final int ALOAD_0 = 0x2a;
+    private static final int ALOAD_1 = 0x2b;
+    private static final int BALOAD = 0x33;
+    private static final int BASTORE = 0x54;
+    private static final int POP = 0x57;
+    private static final int DUP = 0x59;
+    private static final int DUP_X2 = 0x5b;
+    private static final int DUP2 = 0x5c;
+    private static final int ISHL = 0x78;
+    private static final int ISHR = 0x7a;
+    private static final int IAND = 0x7e;
+    private static final int IOR = 0x80;
+    private static final int IXOR = 0x82;
+    private static final int I2B = 0x91;
+    private static final int RETURN = 0xb1;
+    private static final int INVOKESPECIAL = 0xb7;
+    private static final int INVOKESTATIC = 0xb8;
+
+    private static final String EVALUATOR = GeneratedSimulator.Evaluator.class.getName().replace('.', '/');
+    private static final String CLASS_NAME = EvaluatorGenerator.class.getPackageName().replace('.', '/')
+            + "/GeneratedEvaluator";
+
+    // Statistics of the last generate call
+    int classCount;
+    int methodCount;
+    int codeBytes;
+
+    /**
+     * Generates and loads the evaluators of a circuit
+     *
+     * @param circuit the compiled circuit
+     * @return evaluators that together evaluate circuit.evalOrder once, to be
+     *         called in order
+     * @throws ReflectiveOperationException if a class cannot be defined
+     */
+    GeneratedSimulator.Evaluator[] generate(CompiledCircuit circuit) throws ReflectiveOperationException {
+        ArrayList<GeneratedSimulator.Evaluator> evaluators = new ArrayList<>();
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        final int[] order = circuit.evalOrder;
+        int next = 0;
+        do {
+            ClassBuilder builder = new ClassBuilder();
+            while (next < order.length && builder.pool.size() < POOL_LIMIT) {
+                next = builder.addChunk(circuit, next);
+            }
+            byte[] bytes = builder.toByteArray();
+            MethodHandles.Lookup hidden = lookup.defineHiddenClass(bytes, true);
+            Object evaluator = hidden.lookupClass().getDeclaredConstructor().newInstance();
+            evaluators.add((GeneratedSimulator.Evaluator) evaluator);
+            classCount++;
+            methodCount += builder.chunks;
+            codeBytes += builder.chunkBytes;
+        } while (next < order.length);
+        return evaluators.toArray(new GeneratedSimulator.Evaluator[0]);
+    }
+
+    /**
+     * Constant pool of a class file being written
+     */
+    private static final class ConstantPool {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(1 << 16);
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private final HashMap<String, Integer> entries = new HashMap<>();
+        private int count = 1;
+
+        int size() {
+            return count;
+        }
+
+        private int add(String key, int tag, int first, int second, String utf) {
+            Integer index = entries.get(key);
+            if (index != null)
+                return index;
+            try {
+                out.writeByte(tag);
+                if (utf != null) {
+                    out.writeUTF(utf);
+                } else if (tag == 3) {
+                    out.writeInt(first);
+                } else if (tag == 7) {
+                    out.writeShort(first);
+                } else {
+                    out.writeShort(first);
+                    out.writeShort(second);
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            entries.put(key, count);
+            return count++;
+        }
+
+        int utf8(String value) {
+            return add("U" + value, 1, 0, 0, value);
+        }
+
+        int integer(int value) {
+            return add("I" + value, 3, value, 0, null);
+        }
+
+        int classRef(String name) {
+            return add("C" + name, 7, utf8(name), 0, null);
+        }
+
+        int methodRef(String owner, String name, String descriptor) {
+            int nameAndType = add("N" + name + descriptor, 12, utf8(name), utf8(descriptor), null);
+            return add("M" + owner + "." + name + descriptor, 10, classRef(owner), nameAndType, null);
+        }
+    }
+
+    /**
+     * One hidden class: a constructor, evaluate(byte[]) calling every chunk in
+     * order, and the static chunk methods
+     */
+    private static final class ClassBuilder {
+        final ConstantPool pool = new ConstantPool();
+        private final ByteArrayOutputStream methods = new ByteArrayOutputStream(1 << 16);
+        private final ByteArrayOutputStream calls = new ByteArrayOutputStream(256);
+        private final int thisClass = pool.classRef(CLASS_NAME);
+        int chunks;
+        int chunkBytes;
+
+        /**
+         * Writes the next chunk of the evaluation order as a static method
+         *
+         * @param start index into evalOrder of the first node of the chunk
+         * @return index of the first node left for the next chunk
+         */
+        int addChunk(CompiledCircuit circuit, int start) {
+            ByteArrayOutputStream code = new ByteArrayOutputStream(CHUNK_BYTES + 256);
+            final int[] order = circuit.evalOrder;
+            int next = start;
+            while (next < order.length && code.size() < CHUNK_BYTES - nodeBytes(circuit, order[next])
+                    && pool.size() < POOL_LIMIT + 1000) {
+                writeNode(code, circuit, order[next]);
+                next++;
+            }
+            if (next == start) {
+                // A single node larger than a chunk still gets a method
+                writeNode(code, circuit, order[next++]);
+            }
+            code.write(RETURN);
+
+            String name = "chunk" + chunks;
+            writeMethod(methods, 0x000a, name, "([B)V", 8, 1, code.toByteArray());
+            int ref = pool.methodRef(CLASS_NAME, name, "([B)V");
+            calls.write(ALOAD_1);
+            calls.write(INVOKESTATIC);
+            writeShort(calls, ref);
+            chunks++;
+            chunkBytes += code.size();
+            return next;
+        }
+
+        /**
+         * Upper bound of the code written for a node
+         */
+        private int nodeBytes(CompiledCircuit circuit, int node) {
+            return 24 + 16 * (circuit.faninStart[node + 1] - circuit.faninStart[node]);
+        }
+
+        /**
+         * states[node] = (byte) f(states[fanin...]), with the fan-ins folded
+         * left to right like CompiledSimulator.evaluateNode. The Logic
+         * functions are written out as branch-free arithmetic on the 0 / 1 /
+         * 4 encoding, which keeps every chunk a single basic block:
+         * not(x) = x ^ ((x >> 2) ^ 1)
+         * and(x, y) = (x & y) | (q & (q << 2) & 4) with q = x | y
+         * or(x1 .. xn) = q ^ (q & (q << 2) & 4) with q = x1 | .. | xn
+         */
+        private void writeNode(ByteArrayOutputStream code, CompiledCircuit circuit, int node) {
+            final int[] fanin = circuit.fanin;
+            int k = circuit.faninStart[node];
+            final int end = circuit.faninStart[node + 1];
+            byte type = circuit.types[node];
+            code.write(ALOAD_0);
+            push(code, node);
+            load(code, fanin[k++]);
+            switch (type) {
+                case CompiledCircuit.BUF:
+                case CompiledCircuit.OUTPUT:
+                    code.write(BASTORE);
+                    return;
+                case CompiledCircuit.AND:
+                case CompiledCircuit.NAND:
+                    while (k < end) {
+                        load(code, fanin[k++]);
+                        // x y -> (x & y) | (q & (q << 2) & 4)
+                        code.write(DUP2);
+                        code.write(IAND);
+                        code.write(DUP_X2);
+                        code.write(POP);
+                        code.write(IOR);
+                        writeUnknownBit(code);
+                        code.write(IOR);
+                    }
+                    break;
+                case CompiledCircuit.OR:
+                case CompiledCircuit.NOR:
+                    while (k < end) {
+                        load(code, fanin[k++]);
+                        code.write(IOR);
+                    }
+                    // Both 1 and X seen (5) means 1
+                    code.write(DUP);
+                    writeUnknownBit(code);
+                    code.write(IXOR);
+                    break;
+                default:
+                    break;
+            }
+            if (type == CompiledCircuit.NOT || type == CompiledCircuit.NAND || type == CompiledCircuit.NOR) {
+                code.write(DUP);
+                code.write(ICONST_2);
+                code.write(ISHR);
+                code.write(ICONST_1);
+                code.write(IXOR);
+                code.write(IXOR);
+            }
+            code.write(I2B);
+            code.write(BASTORE);
+        }
+
+        /**
+         * q -> q & (q << 2) & 4, which is 4 when q holds both a 1 and an X
+         */
+        private void writeUnknownBit(ByteArrayOutputStream code) {
+            code.write(DUP);
+            code.write(ICONST_2);
+            code.write(ISHL);
+            code.write(IAND);
+            code.write(ICONST_4);
+            code.write(IAND);
+        }
+
+        /**
+         * Pushes states[node]
+         */
+        private void load(ByteArrayOutputStream code, int node) {
+            code.write(ALOAD_0);
+            push(code, node);
+            code.write(BALOAD);
+        }
+
+        private void push(ByteArrayOutputStream code, int value) {
+            if (value <= 5) {
+                code.write(ICONST_0 + value);
+            } else if (value <= Byte.MAX_VALUE) {
+                code.write(BIPUSH);
+                code.write(value);
+            } else if (value <= Short.MAX_VALUE) {
+                code.write(SIPUSH);
+                writeShort(code, value);
+            } else {
+                int index = pool.integer(value);
+                if (index <= 0xff) {
+                    code.write(LDC);
+                    code.write(index);
+                } else {
+                    code.write(LDC_W);
+                    writeShort(code, index);
+                }
+            }
+        }
+
+        byte[] toByteArray() {
+            int object = pool.classRef("java/lang/Object");
+            int evaluator = pool.classRef(EVALUATOR);
+            int objectInit = pool.methodRef("java/lang/Object", "<init>", "()V");
+
+            ByteArrayOutputStream init = new ByteArrayOutputStream(8);
+            init.write(ALOAD_0);
+            init.write(INVOKESPECIAL);
+            writeShort(init, objectInit);
+            init.write(RETURN);
+            calls.write(RETURN);
+            ByteArrayOutputStream all = new ByteArrayOutputStream(256);
+            writeMethod(all, 0x0001, "<init>", "()V", 1, 1, init.toByteArray());
+            writeMethod(all, 0x0001, "evaluate", "([B)V", 1, 2, calls.toByteArray());
+            // Every constant is in the pool now
+            byte[] poolBytes = pool.bytes.toByteArray();
+
+            ByteArrayOutputStream file = new ByteArrayOutputStream(poolBytes.length + all.size() + methods.size() + 64);
+            DataOutputStream out = new DataOutputStream(file);
+            try {
+                out.writeInt(0xCAFEBABE);
+                out.writeShort(0);
+                out.writeShort(CLASS_VERSION);
+                out.writeShort(pool.size());
+                out.write(poolBytes);
+                // ACC_PUBLIC | ACC_FINAL | ACC_SUPER
+                out.writeShort(0x0031);
+                out.writeShort(thisClass);
+                out.writeShort(object);
+                out.writeShort(1);
+                out.writeShort(evaluator);
+                // No fields, no class attributes
+                out.writeShort(0);
+                out.writeShort(chunks + 2);
+                all.writeTo(out);
+                methods.writeTo(out);
+                out.writeShort(0);
+                out.flush();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return file.toByteArray();
+        }
+
+        /**
+         * Writes a method_info with a Code attribute. The code never branches,
+         * so no StackMapTable is needed
+         */
+        private void writeMethod(ByteArrayOutputStream target, int access, String name, String descriptor,
+                int maxStack, int maxLocals, byte[] code) {
+            int nameIndex = pool.utf8(name);
+            int descriptorIndex = pool.utf8(descriptor);
+            int codeIndex = pool.utf8("Code");
+            DataOutputStream out = new DataOutputStream(target);
+            try {
+                out.writeShort(access);
+                out.writeShort(nameIndex);
+                out.writeShort(descriptorIndex);
+                out.writeShort(1);
+                out.writeShort(codeIndex);
+                out.writeInt(12 + code.length);
+                out.writeShort(maxStack);
+                out.writeShort(maxLocals);
+                out.writeInt(code.length);
+                out.write(code);
+                // No exception table, no attributes
+                out.writeShort(0);
+                out.writeShort(0);
+                out.flush();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private static void writeShort(ByteArrayOutputStream out, int value) {
+            out.write(value >>> 8);
+            out.write(value);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package backend;
+
+/**
+ * Selective-trace simulation engine. Only nodes with a fan-in that changed
+ * value are evaluated: changed nets push their readers into per-level work
+ * queues, which are then drained in ascending level order. The first cycle
+ * evaluates everything so the X start state is resolved.
+ */
+public class EventDrivenSimulator extends CompiledSimulator {
+
+    // Work queue of level l is pending[levelStart[l]] .. pending[levelStart[l] + pendingCount[l] - 1]
+    private final int[] pending;
+    private final int[] pendingCount;
+    private final boolean[] queued;
+    private final boolean[] evaluable;
+    private final byte[] dffBefore;
+    private boolean firstCycle = true;
+    long evaluations;
+    long cycles;
+    // Counters of the run metrics, null when they are not collected
+    private Metrics metrics;
+    private long[] levelEvaluations;
+    private long[] typeEvaluations;
+
+    EventDrivenSimulator(CompiledCircuit circuit) {
+        super(circuit);
+        this.pending = new int[circuit.evalOrder.length];
+        this.pendingCount = new int[circuit.levelStart.length];
+        this.queued = new boolean[circuit.nodeCount];
+        this.evaluable = new boolean[circuit.nodeCount];
+        this.dffBefore = new byte[circuit.dffs.length];
+        for (int node : circuit.evalOrder) {
+            evaluable[node] = true;
+        }
+    }
+
+    /**
+     * Counts the evaluations of every level and gate type into run metrics
+     * 
+     * @param metrics the run metrics, null to stop counting
+     */
+    void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+        this.levelEvaluations = metrics != null ? metrics.levelCounters(circuit) : null;
+        this.typeEvaluations = metrics != null ? metrics.typeEvaluations : null;
+    }
+
+    @Override
+    void setState(int node, int state) {
+        if (states[node] != state) {
+            states[node] = (byte) state;
+            // The first cycle evaluates everything anyway
+            if (!firstCycle)
+                schedule(node);
+        }
+    }
+
+    @Override
+    void reset() {
+        super.reset();
+        firstCycle = true;
+    }
+
+    @Override
+    void step() {
+        cycles++;
+        if (firstCycle) {
+            firstCycle = false;
+            super.step();
+            evaluations += circuit.evalOrder.length;
+            if (metrics != null)
+                metrics.addSweeps(circuit, 1);
+            return;
+        }
+        // Clock the DFFs, scheduling readers of every DFF that changed
+        final int[] dffs = circuit.dffs;
+        for (int i = 0; i < dffs.length; i++) {
+            dffBefore[i] = states[dffs[i]];
+        }
+        clockDffs();
+        if (metrics != null) {
+            typeEvaluations[CompiledCircuit.DFF] += dffs.length;
+            levelEvaluations[0] += dffs.length;
+        }
+        for (int i = 0; i < dffs.length; i++) {
+            if (states[dffs[i]] != dffBefore[i]) {
+                schedule(dffs[i]);
+            }
+        }
+
+        // Drain the work queues level by level
+        final int[] levelStart = circuit.levelStart;
+        int node, oldState;
+        for (int level = 0; level < pendingCount.length; level++) {
+            // Evaluating a node only ever schedules nodes on higher levels
+            for (int i = 0; i < pendingCount[level]; i++) {
+                node = pending[levelStart[level] + i];
+                queued[node] = false;
+                oldState = states[node];
+                if (evaluateNode(node) != oldState) {
+                    schedule(node);
+                }
+                if (typeEvaluations != null)
+                    typeEvaluations[circuit.types[node]]++;
+            }
+            evaluations += pendingCount[level];
+            if (levelEvaluations != null && pendingCount[level] != 0)
+                levelEvaluations[level] += pendingCount[level];
+            pendingCount[level] = 0;
+        }
+    }
+
+    /**
+     * Queues every evaluable reader of a node that changed value
+     * 
+     * @param node the node that changed
+     */
+    private void schedule(int node) {
+        final int[] fanout = circuit.fanout;
+        final int end = circuit.fanoutStart[node + 1];
+        int reader, level;
+        for (int k = circuit.fanoutStart[node]; k < end; k++) {
+            reader = fanout[k];
+            if (evaluable[reader] && !queued[reader]) {
+                queued[reader] = true;
+                level = circuit.levels[reader];
+                pending[circuit.levelStart[level] + pendingCount[level]++] = reader;
+            }
+        }
+    }
+
+    /**
+     * Fraction of the full levelized work that was actually evaluated
+     * 
+     * @return evaluations / (cycles * combinational nodes)
+     */
+    double activityRatio() {
+        if (cycles == 0 || circuit.evalOrder.length == 0)
+            return 0.0;
+        return (double) evaluations / ((double) cycles * circuit.evalOrder.length);
+    }
+}
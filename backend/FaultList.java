@@ -0,0 +1,136 @@
+package backend;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Uncollapsed stuck-at fault list of a compiled circuit with the detection
+ * results of a fault simulation run.
+ *
+ * Every input, DFF and evaluated node gets a stuck-at-0 and a stuck-at-1
+ * fault on its output (stem) and on each of its input pins (branches). Faults
+ * are numbered node by node, so the faults of node n are start[n] ..
+ * start[n + 1] - 1: first its stem faults, then its pin faults in pin order.
+ */
+public class FaultList {
+
+    final CompiledCircuit circuit;
+    // Fault i sits on node node[i]: on its output when pin[i] is -1, otherwise
+    // on the input pin fanin[pin[i]]
+    final int[] node;
+    final int[] pin;
+    final byte[] value;
+    final int[] start;
+    // 1-based number of the first detecting vector, 0 while undetected
+    final int[] detectedBy;
+    int detectedCount;
+    int vectorCount;
+
+    FaultList(CompiledCircuit circuit) {
+        this.circuit = circuit;
+        boolean[] evaluable = new boolean[circuit.nodeCount];
+        for (int n : circuit.evalOrder) {
+            evaluable[n] = true;
+        }
+        start = new int[circuit.nodeCount + 1];
+        int count = 0;
+        for (int n = 0; n < circuit.nodeCount; n++) {
+            start[n] = count;
+            if (isSite(n, evaluable)) {
+                count += 2 + 2 * (circuit.faninStart[n + 1] - circuit.faninStart[n]);
+            }
+        }
+        start[circuit.nodeCount] = count;
+        node = new int[count];
+        pin = new int[count];
+        value = new byte[count];
+        detectedBy = new int[count];
+        int next = 0;
+        for (int n = 0; n < circuit.nodeCount; n++) {
+            if (!isSite(n, evaluable))
+                continue;
+            for (int p = -1; p < circuit.faninStart[n + 1] - circuit.faninStart[n]; p++) {
+                for (byte v = 0; v < 2; v++) {
+                    node[next] = n;
+                    pin[next] = p < 0 ? -1 : circuit.faninStart[n] + p;
+                    value[next] = v;
+                    next++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Nodes that carry faults: inputs, DFFs and everything that is evaluated
+     */
+    private boolean isSite(int n, boolean[] evaluable) {
+        byte type = circuit.types[n];
+        return type == CompiledCircuit.INPUT || evaluable[n]
+                || (type == CompiledCircuit.DFF && circuit.faninStart[n + 1] > circuit.faninStart[n]);
+    }
+
+    int size() {
+        return node.length;
+    }
+
+    /**
+     * Records the first detection of a fault
+     *
+     * @param fault  the fault index
+     * @param vector 1-based number of the detecting vector
+     */
+    void detect(int fault, int vector) {
+        if (detectedBy[fault] == 0) {
+            detectedBy[fault] = vector;
+            detectedCount++;
+        }
+    }
+
+    /**
+     * @return detected faults as a percentage of all faults
+     */
+    double coverage() {
+        return node.length == 0 ? 100.0 : 100.0 * detectedCount / node.length;
+    }
+
+    /**
+     * Names a fault, for example "G17 sa0" on a stem or "G17.in1 (G5) sa1"
+     * on the second input pin of G17, which is driven by G5
+     */
+    String describe(int fault) {
+        String[] names = circuit.names;
+        int n = node[fault];
+        String site;
+        if (pin[fault] < 0) {
+            site = names[n];
+        } else {
+            int p = pin[fault] - circuit.faninStart[n];
+            site = names[n] + ".in" + p + " (" + names[circuit.fanin[pin[fault]]] + ")";
+        }
+        return site + " sa" + value[fault];
+    }
+
+    /**
+     * Writes the coverage summary and the first detecting vector of every
+     * fault
+     *
+     * @param writer the report destination
+     * @throws IOException
+     */
+    void writeReport(Writer writer) throws IOException {
+        writer.write("Faults: " + node.length + "\n");
+        writer.write("Detected: " + detectedCount + "\n");
+        writer.write("Vectors: " + vectorCount + "\n");
+        writer.write(String.format("Coverage: %.2f%%\n", coverage()));
+        writer.write(
+                "----------------------------------------------------------------------------------------------------------\n");
+        for (int i = 0; i < node.length; i++) {
+            writer.write(describe(i));
+            if (detectedBy[i] != 0) {
+                writer.write(" detected by vector " + detectedBy[i] + "\n");
+            } else {
+                writer.write(" undetected\n");
+            }
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package backend;
+
+/**
+ * Selects the stuck-at fault simulation run instead of the plain simulation
+ */
+public enum FaultMode {
+    // Plain simulation, no fault grading
+    NONE,
+    // Parallel-pattern single-fault propagation, every vector a separate
+    // frame; circuits with DFFs are graded as SEQUENTIAL
+    COMBINATIONAL,
+    // Concurrent fault simulation of the vectors as one sequence
+    SEQUENTIAL;
+
+    static FaultMode readMode(String mode) {
+        switch (mode) {
+            case "none":
+            case "false":
+                return NONE;
+
+            case "combinational":
+            case "true":
+                return COMBINATIONAL;
+
+            case "sequential":
+                return SEQUENTIAL;
+
+            default:
+                throw new IllegalArgumentException("Unknown fault mode: " + mode);
+        }
+    }
+}
@@ -0,0 +1,316 @@
+package backend;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Stuck-at fault simulator using parallel-pattern single-fault propagation.
+ *
+ * Grades the faults of a FaultList. Vectors are processed in blocks of 64:
+ * the good machine is simulated once per block with the bit-parallel engine,
+ * then each fault that is still undetected is injected and its effect traced
+ * forward, event driven, through its fan-out cone only. A fault is detected
+ * when a primary output is 0 in one machine and 1 in the other, and it is
+ * dropped from the list from then on.
+ *
+ * DFF outputs are taken from the good machine, which is stepped through the
+ * vector sequence with the event-driven engine, so a block of a sequential
+ * circuit is simulated as 64 independent combinational frames. Fault effects
+ * that would only reach an output through a DFF are therefore not followed,
+ * and faults on DFF D pins are never detected here. That is a full-scan
+ * approximation, not the coverage of the circuit, so Circuit.simulateFaults
+ * grades circuits with DFFs with ConcurrentFaultSimulator instead.
+ */
+public class FaultSimulator {
+
+    private final CompiledCircuit circuit;
+    private final BitParallelSimulator good;
+    // Steps the good machine in sequence to get the DFF values of every vector
+    private final CompiledSimulator sequence;
+
+    final FaultList faults;
+
+    // Faulty machine values, only valid for nodes stamped with the current fault
+    private final long[] faulty;
+    private final int[] stamp;
+    private int current;
+
+    // Work queue of level l is pending[levelStart[l]] .. pending[levelStart[l] + pendingCount[l] - 1]
+    private final int[] pending;
+    private final int[] pendingCount;
+    private final boolean[] queued;
+    private final boolean[] evaluable;
+    // Nodes with a path to a primary output through evaluated nodes
+    private final boolean[] observable;
+
+    // Result of the last evaluateFaulty call
+    private long resultOne;
+    private long resultZero;
+
+    FaultSimulator(FaultList faults) {
+        this.faults = faults;
+        this.circuit = faults.circuit;
+        CompiledCircuit circuit = faults.circuit;
+        this.good = new BitParallelSimulator(circuit);
+        this.sequence = new EventDrivenSimulator(circuit);
+        this.faulty = new long[circuit.nodeCount * 2];
+        this.stamp = new int[circuit.nodeCount];
+        this.pending = new int[circuit.evalOrder.length];
+        this.pendingCount = new int[circuit.levelStart.length];
+        this.queued = new boolean[circuit.nodeCount];
+        this.evaluable = new boolean[circuit.nodeCount];
+        for (int node : circuit.evalOrder) {
+            evaluable[node] = true;
+        }
+        this.observable = new boolean[circuit.nodeCount];
+        for (int i = circuit.evalOrder.length - 1; i >= 0; i--) {
+            markObservable(circuit.evalOrder[i]);
+        }
+        for (int node = 0; node < circuit.nodeCount; node++) {
+            if (!evaluable[node])
+                markObservable(node);
+        }
+    }
+
+    /**
+     * A node is observable if it is an output or feeds an observable node.
+     * Readers have to be marked before the nodes they read
+     */
+    private void markObservable(int node) {
+        if (circuit.types[node] == CompiledCircuit.OUTPUT) {
+            observable[node] = true;
+            return;
+        }
+        for (int k = circuit.fanoutStart[node]; k < circuit.fanoutStart[node + 1]; k++) {
+            int reader = circuit.fanout[k];
+            if (evaluable[reader] && observable[reader]) {
+                observable[node] = true;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Grades the vectors against the whole fault list
+     *
+     * @param orderedInputs input names in vector column order
+     * @param vectors       the vector source, consumed but not closed
+     * @throws IOException
+     */
+    void run(String[] orderedInputs, VectorSource vectors) throws IOException {
+        final int[] inputIds = circuit.resolveInputs(orderedInputs);
+        final int[] dffs = circuit.dffs;
+        final long[] inputOnes = new long[inputIds.length];
+        final long[] inputZeros = new long[inputIds.length];
+        final long[] dffOnes = new long[dffs.length];
+        final long[] dffZeros = new long[dffs.length];
+        int[] remaining = new int[faults.size()];
+        int remainingCount = 0;
+        // Faults that cannot reach an output in the same frame are never detected
+        for (int i = 0; i < faults.size(); i++) {
+            if (faults.detectedBy[i] == 0 && observable[faults.node[i]])
+                remaining[remainingCount++] = i;
+        }
+        boolean checked = false;
+        boolean more = true;
+
+        while (more && remainingCount > 0) {
+            // Step the good machine through the next block in sequence,
+            // collecting the inputs and the DFF values of every vector
+            int count = 0;
+            Arrays.fill(inputOnes, 0L);
+            Arrays.fill(inputZeros, 0L);
+            Arrays.fill(dffOnes, 0L);
+            Arrays.fill(dffZeros, 0L);
+            while (count < BitParallelSimulator.LANES && (more = vectors.next())) {
+                if (!checked) {
+                    if (orderedInputs.length != vectors.width()) {
+                        System.err.println("Inputs list and vector length does not match!");
+                    }
+                    checked = true;
+                }
+                for (int j = 0; j < inputIds.length; j++) {
+                    int state = vectors.state(j);
+                    sequence.setState(inputIds[j], state);
+                    if (state == Logic.ONE) {
+                        inputOnes[j] |= 1L << count;
+                    } else if (state == Logic.ZERO) {
+                        inputZeros[j] |= 1L << count;
+                    }
+                }
+                sequence.step();
+                for (int j = 0; j < dffs.length; j++) {
+                    int state = sequence.getState(dffs[j]);
+                    if (state == Logic.ONE) {
+                        dffOnes[j] |= 1L << count;
+                    } else if (state == Logic.ZERO) {
+                        dffZeros[j] |= 1L << count;
+                    }
+                }
+                count++;
+            }
+            if (count == 0)
+                break;
+
+            // Good machine for all 64 frames at once
+            good.reset();
+            for (int j = 0; j < inputIds.length; j++) {
+                good.setLanes(inputIds[j], inputOnes[j], inputZeros[j]);
+            }
+            for (int j = 0; j < dffs.length; j++) {
+                good.setLanes(dffs[j], dffOnes[j], dffZeros[j]);
+            }
+            good.evaluate();
+
+            long laneMask = count == BitParallelSimulator.LANES ? -1L : (1L << count) - 1;
+            int kept = 0;
+            for (int i = 0; i < remainingCount; i++) {
+                int fault = remaining[i];
+                long detected = propagate(fault) & laneMask;
+                if (detected != 0) {
+                    faults.detect(fault, faults.vectorCount + Long.numberOfTrailingZeros(detected) + 1);
+                } else {
+                    remaining[kept++] = fault;
+                }
+            }
+            remainingCount = kept;
+            faults.vectorCount += count;
+        }
+        // Vectors left over once every fault was detected still count
+        while (more && vectors.next()) {
+            faults.vectorCount++;
+        }
+    }
+
+    /**
+     * Injects one fault into the current block and traces it forward
+     *
+     * @param fault the fault index
+     * @return lanes in which a primary output differs from the good machine
+     */
+    private long propagate(int fault) {
+        final long[] values = good.values;
+        current++;
+        int node = faults.node[fault];
+        long stuckOne = faults.value[fault] == 1 ? -1L : 0L;
+        long stuckZero = ~stuckOne;
+
+        if (faults.pin[fault] < 0) {
+            resultOne = stuckOne;
+            resultZero = stuckZero;
+        } else if (evaluable[node]) {
+            evaluateFaulty(node, faults.pin[fault], stuckOne, stuckZero);
+        } else {
+            // A DFF D pin only shows up in the next frame
+            return 0L;
+        }
+        if (resultOne == values[node << 1] && resultZero == values[(node << 1) + 1]) {
+            return 0L;
+        }
+        long detected = 0L;
+        mark(node);
+        if (circuit.types[node] == CompiledCircuit.OUTPUT) {
+            detected |= difference(node);
+        }
+        schedule(node);
+
+        final int[] levelStart = circuit.levelStart;
+        for (int level = 0; level < pendingCount.length; level++) {
+            for (int i = 0; i < pendingCount[level]; i++) {
+                node = pending[levelStart[level] + i];
+                queued[node] = false;
+                evaluateFaulty(node, -1, 0L, 0L);
+                if (resultOne != values[node << 1] || resultZero != values[(node << 1) + 1]) {
+                    mark(node);
+                    if (circuit.types[node] == CompiledCircuit.OUTPUT) {
+                        detected |= difference(node);
+                    }
+                    schedule(node);
+                }
+            }
+            pendingCount[level] = 0;
+        }
+        return detected;
+    }
+
+    private void mark(int node) {
+        stamp[node] = current;
+        faulty[node << 1] = resultOne;
+        faulty[(node << 1) + 1] = resultZero;
+    }
+
+    /**
+     * Lanes where the node is 0 in one machine and 1 in the other
+     */
+    private long difference(int node) {
+        final long[] values = good.values;
+        return (values[node << 1] & faulty[(node << 1) + 1]) | (values[(node << 1) + 1] & faulty[node << 1]);
+    }
+
+    /**
+     * Queues every evaluable reader of a node whose faulty value differs
+     */
+    private void schedule(int node) {
+        final int[] fanout = circuit.fanout;
+        final int end = circuit.fanoutStart[node + 1];
+        int reader, level;
+        for (int k = circuit.fanoutStart[node]; k < end; k++) {
+            reader = fanout[k];
+            if (observable[reader] && evaluable[reader] && !queued[reader]) {
+                queued[reader] = true;
+                level = circuit.levels[reader];
+                pending[circuit.levelStart[level] + pendingCount[level]++] = reader;
+            }
+        }
+    }
+
+    /**
+     * Evaluates a node in the faulty machine into resultOne / resultZero
+     *
+     * @param node     the node to evaluate
+     * @param pin      fan-in entry forced to the stuck value, -1 for none
+     * @param pinOne   "one" rail of the forced pin
+     * @param pinZero  "zero" rail of the forced pin
+     */
+    private void evaluateFaulty(int node, int pin, long pinOne, long pinZero) {
+        final int[] fanin = circuit.fanin;
+        final int start = circuit.faninStart[node];
+        final int end = circuit.faninStart[node + 1];
+        long one = 0L, zero = 0L, srcOne, srcZero, swap;
+        byte type = circuit.types[node];
+        boolean andLike = type == CompiledCircuit.AND || type == CompiledCircuit.NAND;
+        boolean orLike = type == CompiledCircuit.OR || type == CompiledCircuit.NOR;
+        for (int k = start; k < end; k++) {
+            if (k == pin) {
+                srcOne = pinOne;
+                srcZero = pinZero;
+            } else {
+                int src = fanin[k];
+                if (stamp[src] == current) {
+                    srcOne = faulty[src << 1];
+                    srcZero = faulty[(src << 1) + 1];
+                } else {
+                    srcOne = good.values[src << 1];
+                    srcZero = good.values[(src << 1) + 1];
+                }
+            }
+            if (k == start) {
+                one = srcOne;
+                zero = srcZero;
+            } else if (andLike) {
+                one &= srcOne;
+                zero |= srcZero;
+            } else if (orLike) {
+                one |= srcOne;
+                zero &= srcZero;
+            }
+        }
+        if (type == CompiledCircuit.NOT || type == CompiledCircuit.NAND || type == CompiledCircuit.NOR) {
+            swap = one;
+            one = zero;
+            zero = swap;
+        }
+        resultOne = one;
+        resultZero = zero;
+    }
+}
@@ -1,7 +1,7 @@
 package backend;
 
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Writer;
 
 public class Gate extends Entity {
 
@@ -42,7 +42,7 @@ public class Gate extends Entity {
         }
     }
 
-    void printDetails(FileWriter writer) throws IOException {
+    void printDetails(Writer writer) throws IOException {
         // Handle null safety for fanIn and fanOut
         int fanInCount = (fanIn != null) ? fanIn.count() : 0;
         String fanInWires = (fanIn != null) ? fanIn.toString() : "N/A";
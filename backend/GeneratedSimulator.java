@@ -0,0 +1,38 @@
+package backend;
+
+/**
+ * Compiled engine whose combinational evaluation is generated code: the
+ * levelized circuit becomes straight-line bytecode over the state array (see
+ * EvaluatorGenerator), so every gate of every vector runs without the type
+ * dispatch and the fan-in loops of CompiledSimulator.evaluateNode. Worth the
+ * generation time on circuits simulated for many vectors.
+ */
+public class GeneratedSimulator extends CompiledSimulator {
+
+    /**
+     * Evaluates a part of the evaluation order, implemented by the generated
+     * classes
+     */
+    interface Evaluator {
+        void evaluate(byte[] states);
+    }
+
+    private final Evaluator[] evaluators;
+
+    /**
+     * @param circuit    the compiled circuit
+     * @param evaluators the evaluators generated for it
+     */
+    GeneratedSimulator(CompiledCircuit circuit, Evaluator[] evaluators) {
+        super(circuit);
+        this.evaluators = evaluators;
+    }
+
+    @Override
+    void step() {
+        clockDffs();
+        for (Evaluator evaluator : evaluators) {
+            evaluator.evaluate(states);
+        }
+    }
+}
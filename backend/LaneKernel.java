@@ -0,0 +1,42 @@
+package backend;
+
+/**
+ * Gate evaluation over the lanes of WideSimulator. A node holds its lanes as
+ * words of 64 in dual-rail form, see BitParallelSimulator: node n starts at
+ * values[n * stride], first the words of its "one" rail, then those of its
+ * "zero" rail, stride / 2 words each. Inverting gates are evaluated by
+ * swapping the destination rails.
+ *
+ * Implementations are stateless, so one kernel can serve several engines.
+ */
+public interface LaneKernel {
+
+    /**
+     * @return lanes per rail, a multiple of 64
+     */
+    int lanes();
+
+    /**
+     * @return what evaluates the lanes, for the run log
+     */
+    String describe();
+
+    /**
+     * AND of the fan-ins: "one" rails ANDed, "zero" rails ORed. A single
+     * fan-in is copied
+     *
+     * @param values the node values
+     * @param stride longs per node
+     * @param fanin  fan-in node ids
+     * @param from   first fan-in of the gate
+     * @param to     end of the fan-ins of the gate
+     * @param one    offset the "one" rail of the result is written to
+     * @param zero   offset the "zero" rail of the result is written to
+     */
+    void and(long[] values, int stride, int[] fanin, int from, int to, int one, int zero);
+
+    /**
+     * OR of the fan-ins: "one" rails ORed, "zero" rails ANDed, see and
+     */
+    void or(long[] values, int stride, int[] fanin, int from, int to, int one, int zero);
+}
@@ -0,0 +1,48 @@
+package backend;
+
+/**
+ * Pattern-parallel engine whose nets hold a number of independent lanes in
+ * dual-rail words of 64, see BitParallelSimulator. WideRunner feeds one
+ * vector or one sequence to each lane.
+ */
+interface LaneSimulator {
+
+    /**
+     * @return the circuit simulated
+     */
+    CompiledCircuit circuit();
+
+    /**
+     * @return lanes per net, a multiple of 64
+     */
+    int lanes();
+
+    /**
+     * Sets every net of every lane back to X
+     */
+    void reset();
+
+    /**
+     * Assigns every lane of a node
+     *
+     * @param node the node id
+     * @param one  per word, lanes holding a 1
+     * @param zero per word, lanes holding a 0 (lanes in neither are X)
+     */
+    void setLanes(int node, long[] one, long[] zero);
+
+    /**
+     * Simulates one clock cycle in all lanes
+     */
+    void step();
+
+    /**
+     * @return the lanes of one word of a node holding a 1
+     */
+    long ones(int node, int word);
+
+    /**
+     * @return the lanes of one word of a node holding a 0
+     */
+    long zeros(int node, int word);
+}
@@ -0,0 +1,147 @@
+package backend;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Compiled engine that spreads the gates of wide levels over several threads
+ * within one cycle. Gates of one level never read each other, so a level can
+ * be cut into slices evaluated at the same time; the next level starts once
+ * every slice is done. Levels narrower than the threshold are not worth a
+ * barrier and run on the calling thread, several in a row without any
+ * synchronization, so small circuits behave like CompiledSimulator.
+ *
+ * The calling thread evaluates the first slice of each wide level itself. The
+ * other slices go to worker threads that spin for a short while between
+ * levels and park when the circuit is idle. The barrier is a counter the
+ * workers increment, spun on by the calling thread. Call close to stop the
+ * workers.
+ */
+public class LevelParallelSimulator extends CompiledSimulator {
+
+    static final int DEFAULT_THRESHOLD = 2048;
+    // Spins before a waiting thread backs off
+    private static final int SPINS = 1 << 12;
+
+    // Per level: evaluated in slices on all threads
+    private final boolean[] wide;
+    private final Thread[] workers;
+    private final AtomicInteger done = new AtomicInteger();
+    // Bumped by the calling thread for every wide level; the slice bounds
+    // are written before it, so workers see them once they see the new phase
+    private volatile int phase;
+    private volatile boolean closed;
+    private int from;
+    private int to;
+    private int chunk;
+    private volatile RuntimeException failure;
+    int wideLevels;
+
+    /**
+     * @param circuit   the compiled circuit
+     * @param threads   threads per wide level, the calling thread included
+     * @param threshold fewest gates a level needs to be split
+     */
+    LevelParallelSimulator(CompiledCircuit circuit, int threads, int threshold) {
+        super(circuit);
+        int levelCount = circuit.levelStart.length - 1;
+        this.wide = new boolean[levelCount];
+        for (int level = 0; level < levelCount; level++) {
+            if (threads > 1 && circuit.levelStart[level + 1] - circuit.levelStart[level] >= threshold) {
+                wide[level] = true;
+                wideLevels++;
+            }
+        }
+        this.workers = new Thread[wideLevels > 0 ? threads - 1 : 0];
+        for (int i = 0; i < workers.length; i++) {
+            final int slice = i + 1;
+            workers[i] = new Thread(() -> work(slice), "level-worker-" + slice);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    @Override
+    void step() {
+        clockDffs();
+        final int[] levelStart = circuit.levelStart;
+        int level = 0;
+        int start;
+        while (level < wide.length) {
+            if (wide[level]) {
+                evaluateLevel(levelStart[level], levelStart[level + 1]);
+                level++;
+            } else {
+                // A run of narrow levels in one go
+                start = levelStart[level];
+                while (level < wide.length && !wide[level]) {
+                    level++;
+                }
+                evaluate(start, levelStart[level]);
+            }
+        }
+    }
+
+    /**
+     * Evaluates one level in slices, one per thread, and waits for all of them
+     */
+    private void evaluateLevel(int from, int to) {
+        int parties = workers.length + 1;
+        this.from = from;
+        this.to = to;
+        this.chunk = (to - from + parties - 1) / parties;
+        done.set(0);
+        phase++;
+        for (Thread worker : workers) {
+            LockSupport.unpark(worker);
+        }
+        evaluate(from, Math.min(to, from + chunk));
+        int spins = 0;
+        while (done.get() < workers.length) {
+            if (++spins < SPINS) {
+                Thread.onSpinWait();
+            } else {
+                Thread.yield();
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Worker loop: waits for the next wide level and evaluates its slice
+     */
+    private void work(int slice) {
+        int seen = 0;
+        int spins, start;
+        while (true) {
+            spins = 0;
+            while (phase == seen && !closed) {
+                if (++spins < SPINS) {
+                    Thread.onSpinWait();
+                } else {
+                    LockSupport.park(this);
+                }
+            }
+            if (closed)
+                return;
+            seen = phase;
+            start = from + slice * chunk;
+            try {
+                evaluate(start, Math.min(to, start + chunk));
+            } catch (RuntimeException e) {
+                failure = e;
+            }
+            done.incrementAndGet();
+        }
+    }
+
+    @Override
+    void close() {
+        closed = true;
+        for (Thread worker : workers) {
+            LockSupport.unpark(worker);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package backend;
+
+/**
+ * Static three-valued logic helpers shared by the compiled simulation engines.
+ * States follow the same encoding as Entity: 0, 1 and 4 for an unknown (X)
+ * value.
+ */
+public final class Logic {
+
+    static final byte ZERO = 0;
+    static final byte ONE = 1;
+    static final byte X = 4;
+
+    private Logic() {
+    }
+
+    static int and(int x, int y) {
+        if (x == 0 || y == 0)
+            return 0;
+        if (x == 1 && y == 1)
+            return 1;
+        return 4;
+    }
+
+    static int or(int x, int y) {
+        if (x == 1 || y == 1)
+            return 1;
+        if (x == 0 && y == 0)
+            return 0;
+        return 4;
+    }
+
+    static int not(int x) {
+        if (x == 1)
+            return 0;
+        if (x == 0)
+            return 1;
+        return 4;
+    }
+
+    /**
+     * Converts a vector file character into a state
+     * 
+     * @param c '0', '1', 'X' or 'x'
+     * @return the state, or -1 if the character is not a valid state
+     */
+    static int fromChar(int c) {
+        switch (c) {
+            case '0':
+                return ZERO;
+            case '1':
+                return ONE;
+            case 'X':
+            case 'x':
+                return X;
+            default:
+                return -1;
+        }
+    }
+}
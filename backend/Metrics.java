@@ -0,0 +1,198 @@
+package backend;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+
+import jdk.jfr.FlightRecorder;
+
+/**
+ * Run metrics: nanosecond phase timers, gate evaluations per type and per
+ * level, vector throughput and heap allocated while simulating. Written as a
+ * JSON report and also emitted as JFR events while a recording is running.
+ * The event classes are only touched once JFR is up, since loading them
+ * starts the recorder machinery.
+ *
+ * Collection is switched on with --metrics=true. When it is off the circuit
+ * and the engines hold no Metrics object and only test for null once per
+ * phase or per vector, never per gate. Levelized engines evaluate the same
+ * nodes every cycle, so their counts are derived from the number of sweeps
+ * instead of being counted gate by gate
+ */
+public class Metrics {
+
+    // Phase ids
+    static final int PARSE = 0;
+    static final int LOAD = 1;
+    static final int BUFFER = 2;
+    static final int LEVELIZE = 3;
+    static final int COMPILE = 4;
+    static final int SIMULATE = 5;
+    static final int WRITE = 6;
+    static final int OPTIMIZE = 7;
+    static final String[] PHASE_NAMES = { "parse", "load", "buffer", "levelize", "compile", "simulate", "write",
+            "optimize" };
+    // Names of the CompiledCircuit type codes
+    static final String[] TYPE_NAMES = { "INPUT", "OUTPUT", "WIRE", "AND", "NAND", "OR", "NOR", "NOT", "DFF", "BUF" };
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    final String circuitName;
+    final long[] phaseNanos = new long[PHASE_NAMES.length];
+    final long[] typeEvaluations = new long[TYPE_NAMES.length];
+    long[] levelEvaluations = new long[0];
+    String mode = "";
+    long vectors;
+    long allocatedBytes;
+
+    Metrics(String circuitName) {
+        this.circuitName = circuitName;
+    }
+
+    /**
+     * @return the start time of a phase, to hand back to end
+     */
+    long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Adds the time since start to a phase and reports it to JFR
+     *
+     * @param phase the phase id
+     * @param start value returned by start
+     */
+    void end(int phase, long start) {
+        long nanos = System.nanoTime() - start;
+        phaseNanos[phase] += nanos;
+        if (!FlightRecorder.isInitialized())
+            return;
+        SimulationPhaseEvent event = new SimulationPhaseEvent();
+        if (event.isEnabled()) {
+            event.circuit = circuitName;
+            event.phase = PHASE_NAMES[phase];
+            event.nanos = nanos;
+            event.commit();
+        }
+    }
+
+    /**
+     * @return bytes allocated so far by the calling thread, 0 if the JVM cannot
+     *         tell
+     */
+    static long allocatedBytes() {
+        if (THREADS instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) THREADS).getCurrentThreadAllocatedBytes();
+        }
+        return 0;
+    }
+
+    /**
+     * Per-level counters, sized for a circuit
+     *
+     * @return the level counters, indexed by level
+     */
+    long[] levelCounters(CompiledCircuit circuit) {
+        if (levelEvaluations.length < circuit.levelStart.length - 1) {
+            levelEvaluations = new long[circuit.levelStart.length - 1];
+        }
+        return levelEvaluations;
+    }
+
+    /**
+     * Counts full levelized sweeps: every DFF and every node of evalOrder
+     * evaluated once per sweep
+     *
+     * @param circuit the compiled circuit
+     * @param sweeps  number of sweeps
+     */
+    void addSweeps(CompiledCircuit circuit, long sweeps) {
+        if (sweeps == 0)
+            return;
+        long[] levels = levelCounters(circuit);
+        for (int node : circuit.evalOrder) {
+            typeEvaluations[circuit.types[node]] += sweeps;
+            levels[circuit.levels[node]] += sweeps;
+        }
+        for (int node : circuit.dffs) {
+            typeEvaluations[CompiledCircuit.DFF] += sweeps;
+            levels[circuit.levels[node]] += sweeps;
+        }
+    }
+
+    long totalEvaluations() {
+        long total = 0;
+        for (long count : typeEvaluations) {
+            total += count;
+        }
+        return total;
+    }
+
+    double vectorsPerSecond() {
+        long nanos = phaseNanos[SIMULATE];
+        return nanos == 0 ? 0.0 : vectors * 1e9 / nanos;
+    }
+
+    /**
+     * Reports the end of the run to JFR and writes the JSON report
+     *
+     * @param path the report file
+     * @throws IOException
+     */
+    void writeReport(String path) throws IOException {
+        SimulationRunEvent event = FlightRecorder.isInitialized() ? new SimulationRunEvent() : null;
+        if (event != null && event.isEnabled()) {
+            event.circuit = circuitName;
+            event.mode = mode;
+            event.vectors = vectors;
+            event.gateEvaluations = totalEvaluations();
+            event.allocatedBytes = allocatedBytes;
+            event.commit();
+        }
+        try (Writer writer = new BufferedWriter(new FileWriter(path))) {
+            writeJson(writer);
+        }
+    }
+
+    void writeJson(Writer writer) throws IOException {
+        StringBuilder json = new StringBuilder(1024);
+        json.append("{\n");
+        json.append("  \"circuit\": \"").append(circuitName).append("\",\n");
+        json.append("  \"mode\": \"").append(mode).append("\",\n");
+        json.append("  \"phaseNanos\": {");
+        for (int i = 0; i < PHASE_NAMES.length; i++) {
+            json.append(i == 0 ? "\n" : ",\n");
+            json.append("    \"").append(PHASE_NAMES[i]).append("\": ").append(phaseNanos[i]);
+        }
+        json.append("\n  },\n");
+        json.append("  \"vectors\": ").append(vectors).append(",\n");
+        json.append("  \"vectorsPerSecond\": ").append(String.format(Locale.ROOT, "%.1f", vectorsPerSecond()))
+                .append(",\n");
+        json.append("  \"gateEvaluations\": ").append(totalEvaluations()).append(",\n");
+        json.append("  \"evaluationsByType\": {");
+        boolean first = true;
+        for (int i = 0; i < TYPE_NAMES.length; i++) {
+            if (typeEvaluations[i] == 0)
+                continue;
+            json.append(first ? "\n" : ",\n");
+            json.append("    \"").append(TYPE_NAMES[i]).append("\": ").append(typeEvaluations[i]);
+            first = false;
+        }
+        json.append(first ? "},\n" : "\n  },\n");
+        json.append("  \"evaluationsByLevel\": [");
+        for (int i = 0; i < levelEvaluations.length; i++) {
+            json.append(i == 0 ? "" : ", ").append(levelEvaluations[i]);
+        }
+        json.append("],\n");
+        json.append("  \"allocatedBytes\": ").append(allocatedBytes).append(",\n");
+        double perVector = vectors == 0 ? 0.0 : (double) allocatedBytes / vectors;
+        json.append("  \"allocatedBytesPerVector\": ").append(String.format(Locale.ROOT, "%.1f", perVector))
+                .append("\n");
+        json.append("}\n");
+        writer.write(json.toString());
+    }
+}
@@ -0,0 +1,133 @@
+package backend;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Open addressing hash table that interns names straight from the bytes of a
+ * buffer. A name is turned into a String only the first time it is seen; later
+ * occurrences are matched byte by byte. Each name can carry one associated
+ * value (the parser stores the net's Wire there)
+ */
+public class NameTable {
+
+    private int[] slots;
+    private int[] hashes;
+    private String[] names;
+    private Object[] values;
+    private int size;
+
+    NameTable(int expected) {
+        int capacity = Integer.highestOneBit(Math.max(16, expected * 2) - 1) << 1;
+        slots = new int[capacity];
+        Arrays.fill(slots, -1);
+        hashes = new int[Math.max(16, expected)];
+        names = new String[hashes.length];
+        values = new Object[hashes.length];
+    }
+
+    /**
+     * Finds or adds the name stored in buffer[start, start + length)
+     * 
+     * @return the index of the name
+     */
+    int intern(ByteBuffer buffer, int start, int length) {
+        int hash = 0;
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + (buffer.get(start + i) & 0xff);
+        }
+        int mask = slots.length - 1;
+        int slot = mix(hash) & mask;
+        int index;
+        while ((index = slots[slot]) >= 0) {
+            if (hashes[index] == hash && equals(names[index], buffer, start, length)) {
+                return index;
+            }
+            slot = (slot + 1) & mask;
+        }
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(start + i);
+        }
+        return add(new String(bytes, StandardCharsets.ISO_8859_1), hash, slot);
+    }
+
+    /**
+     * Finds or adds a name given as a String
+     * 
+     * @return the index of the name
+     */
+    int intern(String name) {
+        int hash = name.hashCode();
+        int mask = slots.length - 1;
+        int slot = mix(hash) & mask;
+        int index;
+        while ((index = slots[slot]) >= 0) {
+            if (hashes[index] == hash && names[index].equals(name)) {
+                return index;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return add(name, hash, slot);
+    }
+
+    private int add(String name, int hash, int slot) {
+        if (size == names.length) {
+            hashes = Arrays.copyOf(hashes, size * 2);
+            names = Arrays.copyOf(names, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+        }
+        int index = size++;
+        hashes[index] = hash;
+        names[index] = name;
+        slots[slot] = index;
+        if (size * 2 > slots.length) {
+            rehash();
+        }
+        return index;
+    }
+
+    private void rehash() {
+        slots = new int[slots.length * 2];
+        Arrays.fill(slots, -1);
+        int mask = slots.length - 1;
+        for (int index = 0; index < size; index++) {
+            int slot = mix(hashes[index]) & mask;
+            while (slots[slot] >= 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = index;
+        }
+    }
+
+    private static int mix(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean equals(String name, ByteBuffer buffer, int start, int length) {
+        if (name.length() != length)
+            return false;
+        for (int i = 0; i < length; i++) {
+            if (name.charAt(i) != (buffer.get(start + i) & 0xff))
+                return false;
+        }
+        return true;
+    }
+
+    String name(int index) {
+        return names[index];
+    }
+
+    Object value(int index) {
+        return values[index];
+    }
+
+    void setValue(int index, Object value) {
+        values[index] = value;
+    }
+
+    int size() {
+        return size;
+    }
+}
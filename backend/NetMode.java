@@ -0,0 +1,24 @@
+package backend;
+
+/**
+ * How the internal wires of a netlist are modelled once it is parsed
+ */
+public enum NetMode {
+    // One BUF gate for every driver and sink pair of a wire
+    BUFFERED,
+    // Drivers connected straight to their sinks, no gates added
+    DIRECT;
+
+    static NetMode readMode(String mode) {
+        switch (mode) {
+            case "buffered":
+                return BUFFERED;
+
+            case "direct":
+                return DIRECT;
+
+            default:
+                throw new IllegalArgumentException("Unknown net mode: " + mode);
+        }
+    }
+}
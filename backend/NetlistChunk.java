@@ -0,0 +1,136 @@
+package backend;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fork-join task that tokenizes one slice of the gate instance section of a
+ * netlist. Gates are collected into flat per-chunk arrays and net names are
+ * mapped to global ids through a shared concurrent table; the gates are added
+ * to the Circuit afterwards, chunk by chunk in file order
+ */
+public class NetlistChunk extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private final ByteBuffer buffer;
+    private final int from;
+    private final int to;
+    private final ConcurrentHashMap<String, Integer> netIds;
+    private final AtomicInteger nextNetId;
+
+    // Parsed gates: connections of gate g are connections[connectionStart[g]]
+    // .. connections[connectionStart[g + 1] - 1], output first
+    int gateCount;
+    GateType[] types = new GateType[64];
+    String[] gateNames = new String[64];
+    int[] connectionStart = new int[65];
+    int[] connections = new int[256];
+    // Global net id of every connection
+    int[] netOf;
+    // Net name of every global id first seen in this chunk, by connection
+    String[] netNames;
+    // Keywords of the statements that were skipped as unknown, in file order
+    final ArrayList<String> skipped = new ArrayList<>();
+    IllegalArgumentException error;
+
+    /**
+     * @param buffer    the netlist file contents
+     * @param from      start of the slice, on a statement boundary
+     * @param to        end of the slice, on a statement boundary
+     * @param netIds    shared net name to global id table
+     * @param nextNetId next free global id
+     */
+    NetlistChunk(ByteBuffer buffer, int from, int to, ConcurrentHashMap<String, Integer> netIds,
+            AtomicInteger nextNetId) {
+        this.buffer = buffer;
+        this.from = from;
+        this.to = to;
+        this.netIds = netIds;
+        this.nextNetId = nextNetId;
+    }
+
+    @Override
+    protected void compute() {
+        try {
+            tokenize();
+        } catch (IllegalArgumentException e) {
+            error = e;
+        }
+    }
+
+    private void tokenize() {
+        NetlistTokenizer tokens = new NetlistTokenizer(buffer, from, to);
+        NameTable nets = new NameTable(Math.max(16, (to - from) / 24));
+        int[] localToGlobal = new int[64];
+        int used = 0;
+        GateType type;
+        while (tokens.next() != NetlistTokenizer.EOF) {
+            if (tokens.matches("endmodule")) {
+                break;
+            }
+            if ((type = tokens.gateType()) == null) {
+                skipped.add(tokens.text());
+                tokens.skipStatement();
+                continue;
+            }
+            if (tokens.next() != NetlistTokenizer.IDENTIFIER) {
+                throw new IllegalArgumentException("Invalid gate declaration");
+            }
+            if (gateCount == types.length) {
+                types = Arrays.copyOf(types, gateCount * 2);
+                gateNames = Arrays.copyOf(gateNames, gateCount * 2);
+                connectionStart = Arrays.copyOf(connectionStart, gateCount * 2 + 1);
+            }
+            types[gateCount] = type;
+            gateNames[gateCount] = tokens.text();
+            if (tokens.next() != NetlistTokenizer.PUNCTUATION || !tokens.isPunctuation('(')) {
+                throw new IllegalArgumentException("Invalid gate declaration");
+            }
+            while (true) {
+                if (tokens.next() != NetlistTokenizer.IDENTIFIER) {
+                    throw new IllegalArgumentException("Invalid gate declaration");
+                }
+                int local = tokens.intern(nets);
+                if (nets.value(local) == null) {
+                    // First sight in this chunk: resolve the global id once
+                    if (local == localToGlobal.length) {
+                        localToGlobal = Arrays.copyOf(localToGlobal, local * 2);
+                    }
+                    localToGlobal[local] = netIds.computeIfAbsent(nets.name(local),
+                            name -> nextNetId.getAndIncrement());
+                    nets.setValue(local, Boolean.TRUE);
+                }
+                if (used == connections.length) {
+                    connections = Arrays.copyOf(connections, used * 2);
+                }
+                connections[used++] = local;
+                tokens.next();
+                if (tokens.isPunctuation(')')) {
+                    break;
+                }
+                if (!tokens.isPunctuation(',')) {
+                    throw new IllegalArgumentException("Invalid gate declaration");
+                }
+            }
+            tokens.next();
+            if (!tokens.isPunctuation(';')) {
+                throw new IllegalArgumentException("Invalid gate declaration");
+            }
+            connectionStart[++gateCount] = used;
+        }
+
+        // Translate local net indices into global ids and keep their names
+        netOf = new int[used];
+        netNames = new String[used];
+        for (int i = 0; i < used; i++) {
+            netOf[i] = localToGlobal[connections[i]];
+            netNames[i] = nets.name(connections[i]);
+        }
+        connections = null;
+    }
+}
@@ -0,0 +1,378 @@
+package backend;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * Engineering change (ECO) edits of a calibrated circuit. Gates can be added,
+ * removed or retyped and connections made or broken without parsing and
+ * calibrating again. After an edit only the fan-out cone of what changed is
+ * levelized again (up to the DFFs that cut it) and only the schedule levels
+ * that lost or gained entities are rebuilt, so the legacy engine can simulate
+ * the change right away. The compiled circuit is dropped and flattened again
+ * from the updated schedule by the next simulateCircuit call.
+ *
+ * Connections are made between entities: gates by instance name, inputs and
+ * outputs by net name. Internal wires no longer exist after calibration.
+ */
+public class NetlistEditor {
+
+    private final Circuit circuit;
+    private final HashMap<String, Gate> gates;
+    // Entities levelized again by the last edit
+    int relevelled;
+
+    NetlistEditor(Circuit circuit) {
+        if (circuit.sched.length == 0 && circuit.firstGate != null) {
+            throw new IllegalStateException("Circuit is not calibrated");
+        }
+        this.circuit = circuit;
+        this.gates = new HashMap<>();
+        Gate gate = circuit.firstGate;
+        while (gate != null) {
+            gates.put(gate.getName(), gate);
+            gate = gate.nextGate;
+        }
+    }
+
+    /**
+     * Adds a gate at the end of the gate list
+     *
+     * @param name    instance name of the new gate
+     * @param type    gate type
+     * @param inputs  names of the entities driving its pins, in pin order
+     * @param outputs names of the entities it drives
+     * @return the new gate
+     */
+    public Gate addGate(String name, GateType type, String[] inputs, String[] outputs) {
+        if (gates.containsKey(name)) {
+            throw new IllegalArgumentException("Gate already exists: " + name);
+        }
+        Gate gate = new Gate(name, type);
+        ArrayList<Entity> changed = new ArrayList<>();
+        changed.add(gate);
+        for (String input : inputs) {
+            link(find(input), gate);
+        }
+        for (String output : outputs) {
+            Entity sink = find(output);
+            link(gate, sink);
+            changed.add(sink);
+        }
+        if (circuit.firstGate == null) {
+            circuit.firstGate = gate;
+        } else {
+            circuit.lastGate.nextGate = gate;
+        }
+        circuit.lastGate = gate;
+        gates.put(name, gate);
+        update(changed, null);
+        return gate;
+    }
+
+    /**
+     * Removes a gate and every connection to and from it
+     *
+     * @param name instance name of the gate
+     */
+    public void removeGate(String name) {
+        Gate gate = gates.remove(name);
+        if (gate == null) {
+            throw new IllegalArgumentException("Unknown gate: " + name);
+        }
+        ArrayList<Entity> changed = new ArrayList<>();
+        while (gate.fanIn != null) {
+            unlink(gate.fanIn.data, gate);
+        }
+        while (gate.fanOut != null) {
+            Entity sink = gate.fanOut.data;
+            unlink(gate, sink);
+            changed.add(sink);
+        }
+        // Unlink from the gate list
+        Gate previous = null;
+        Gate ptr = circuit.firstGate;
+        while (ptr != gate) {
+            previous = ptr;
+            ptr = ptr.nextGate;
+        }
+        if (previous == null) {
+            circuit.firstGate = gate.nextGate;
+        } else {
+            previous.nextGate = gate.nextGate;
+        }
+        if (circuit.lastGate == gate) {
+            circuit.lastGate = previous;
+        }
+        gate.nextGate = null;
+        update(changed, gate);
+    }
+
+    /**
+     * Changes the type of a gate, keeping its connections
+     *
+     * @param name instance name of the gate
+     * @param type the new type
+     */
+    public void retypeGate(String name, GateType type) {
+        Gate gate = gates.get(name);
+        if (gate == null) {
+            throw new IllegalArgumentException("Unknown gate: " + name);
+        }
+        gate.type = type;
+        ArrayList<Entity> changed = new ArrayList<>();
+        changed.add(gate);
+        update(changed, null);
+    }
+
+    /**
+     * Connects a driver to a new, last pin of a sink
+     *
+     * @param driver name of the driving entity
+     * @param sink   name of the driven entity
+     */
+    public void connect(String driver, String sink) {
+        Entity to = find(sink);
+        link(find(driver), to);
+        ArrayList<Entity> changed = new ArrayList<>();
+        changed.add(to);
+        update(changed, null);
+    }
+
+    /**
+     * Removes one connection from a driver to a sink
+     *
+     * @param driver name of the driving entity
+     * @param sink   name of the driven entity
+     */
+    public void disconnect(String driver, String sink) {
+        Entity from = find(driver);
+        Entity to = find(sink);
+        if (!contains(from.fanOut, to)) {
+            throw new IllegalArgumentException(driver + " does not drive " + sink);
+        }
+        unlink(from, to);
+        ArrayList<Entity> changed = new ArrayList<>();
+        changed.add(to);
+        update(changed, null);
+    }
+
+    private Entity find(String name) {
+        Entity entity = gates.get(name);
+        if (entity == null)
+            entity = circuit.inputs.get(name);
+        if (entity == null)
+            entity = circuit.outputs.get(name);
+        if (entity == null) {
+            throw new IllegalArgumentException("Unknown gate or port: " + name);
+        }
+        return entity;
+    }
+
+    private static void link(Entity driver, Entity sink) {
+        if (sink.getType() == GateType.INPUT) {
+            throw new IllegalArgumentException("Inputs cannot be driven: " + sink.getName());
+        }
+        if (driver.fanOut != null) {
+            driver.fanOut.add(sink);
+        } else {
+            driver.fanOut = new DataWrapper<>(sink);
+        }
+        if (sink.fanIn != null) {
+            sink.fanIn.add(driver);
+        } else {
+            sink.fanIn = new DataWrapper<>(driver);
+        }
+    }
+
+    private static void unlink(Entity driver, Entity sink) {
+        driver.fanOut = driver.deleteOutput(sink);
+        sink.fanIn = sink.deleteInput(driver);
+    }
+
+    private static boolean contains(DataWrapper<Entity> list, Entity entity) {
+        while (list != null) {
+            if (list.data == entity)
+                return true;
+            list = list.next;
+        }
+        return false;
+    }
+
+    /**
+     * Levelizes the fan-out cone of the changed entities again, moves the
+     * entities whose level changed in the schedule and drops the compiled
+     * circuit
+     *
+     * @param changed entities whose fan-in or type changed
+     * @param removed an entity taken out of the circuit, null if none
+     */
+    private void update(ArrayList<Entity> changed, Entity removed) {
+        // The cone: the changed entities and everything they feed, up to the
+        // DFFs. pendingFanIn >= 0 marks cone members while this runs
+        ArrayList<Entity> cone = new ArrayList<>();
+        for (Entity entity : changed) {
+            if (entity.pendingFanIn < 0) {
+                entity.pendingFanIn = 0;
+                cone.add(entity);
+            }
+        }
+        DataWrapper<Entity> out_ptr;
+        Entity entity, next;
+        int i;
+        for (i = 0; i < cone.size(); i++) {
+            out_ptr = cone.get(i).fanOut;
+            while (out_ptr != null) {
+                next = out_ptr.data;
+                if (!Circuit.isLevelSource(next) && next.pendingFanIn < 0) {
+                    next.pendingFanIn = 0;
+                    cone.add(next);
+                }
+                out_ptr = out_ptr.next;
+            }
+        }
+        // Connections inside the cone decide the order, the levels of
+        // everything outside it are final
+        for (i = 0; i < cone.size(); i++) {
+            out_ptr = cone.get(i).fanOut;
+            while (out_ptr != null) {
+                next = out_ptr.data;
+                if (!Circuit.isLevelSource(next) && next.pendingFanIn >= 0)
+                    next.pendingFanIn++;
+                out_ptr = out_ptr.next;
+            }
+        }
+        int[] oldLevels = new int[cone.size()];
+        Entity[] ready = new Entity[cone.size()];
+        int head = 0;
+        int tail = 0;
+        for (i = 0; i < cone.size(); i++) {
+            entity = cone.get(i);
+            oldLevels[i] = entity.level;
+            if (entity.pendingFanIn == 0 || Circuit.isLevelSource(entity))
+                ready[tail++] = entity;
+        }
+        DataWrapper<Entity> in_ptr;
+        int level;
+        while (head < tail) {
+            entity = ready[head++];
+            if (Circuit.isLevelSource(entity)) {
+                level = 0;
+            } else {
+                // One above the highest levelled fan-in, -1 if none is levelled
+                level = -1;
+                in_ptr = entity.fanIn;
+                while (in_ptr != null) {
+                    if (in_ptr.data.level >= 0)
+                        level = Math.max(level, in_ptr.data.level + 1);
+                    in_ptr = in_ptr.next;
+                }
+            }
+            entity.level = level;
+            out_ptr = entity.fanOut;
+            while (out_ptr != null) {
+                next = out_ptr.data;
+                if (!Circuit.isLevelSource(next) && next.pendingFanIn > 0 && --next.pendingFanIn == 0)
+                    ready[tail++] = next;
+                out_ptr = out_ptr.next;
+            }
+        }
+        if (tail < cone.size()) {
+            System.err.println("Combinational loop detected: " + (cone.size() - tail)
+                    + " entities could not be levelled");
+            for (Entity stuck : cone) {
+                if (stuck.pendingFanIn > 0)
+                    stuck.level = -1;
+            }
+        }
+        for (Entity levelled : cone) {
+            levelled.pendingFanIn = -1;
+        }
+        relevelled = cone.size();
+
+        // Move what changed level
+        ArrayList<Entity> moved = new ArrayList<>();
+        ArrayList<Integer> from = new ArrayList<>();
+        for (i = 0; i < cone.size(); i++) {
+            if (cone.get(i).level != oldLevels[i]) {
+                moved.add(cone.get(i));
+                from.add(oldLevels[i]);
+            }
+        }
+        if (removed != null) {
+            moved.add(removed);
+            from.add(removed.level);
+            removed.level = -1;
+        }
+        reschedule(moved, from);
+        circuit.compiled = null;
+        circuit.optimized = false;
+    }
+
+    /**
+     * Rebuilds only the schedule levels that entities left or joined
+     *
+     * @param moved entities whose level changed, at their new level
+     * @param from  their old levels, -1 if they were not scheduled
+     */
+    private void reschedule(ArrayList<Entity> moved, ArrayList<Integer> from) {
+        if (moved.isEmpty())
+            return;
+        Entity[][] sched = circuit.sched;
+        int maxLevel = sched.length - 1;
+        for (Entity entity : moved) {
+            maxLevel = Math.max(maxLevel, entity.level);
+        }
+        if (maxLevel >= sched.length) {
+            int oldLength = sched.length;
+            sched = Arrays.copyOf(sched, maxLevel + 1);
+            for (int level = oldLength; level < sched.length; level++) {
+                sched[level] = new Entity[0];
+            }
+        }
+        Set<Entity> moving = Collections.newSetFromMap(new IdentityHashMap<>());
+        moving.addAll(moved);
+        // Drop the moved entities from their old levels
+        boolean[] done = new boolean[sched.length];
+        for (int oldLevel : from) {
+            if (oldLevel < 0 || oldLevel >= sched.length || done[oldLevel])
+                continue;
+            done[oldLevel] = true;
+            Entity[] entities = sched[oldLevel];
+            int kept = 0;
+            Entity[] remaining = new Entity[entities.length];
+            for (Entity entity : entities) {
+                if (!moving.contains(entity))
+                    remaining[kept++] = entity;
+            }
+            sched[oldLevel] = Arrays.copyOf(remaining, kept);
+        }
+        // Append them to their new levels
+        int[] added = new int[sched.length];
+        for (Entity entity : moved) {
+            if (entity.level >= 0)
+                added[entity.level]++;
+        }
+        int[] fill = new int[sched.length];
+        for (int level = 0; level < sched.length; level++) {
+            if (added[level] > 0) {
+                fill[level] = sched[level].length;
+                sched[level] = Arrays.copyOf(sched[level], sched[level].length + added[level]);
+            }
+        }
+        for (Entity entity : moved) {
+            if (entity.level >= 0)
+                sched[entity.level][fill[entity.level]++] = entity;
+        }
+        // The schedule ends at the highest level in use
+        int length = sched.length;
+        while (length > 1 && sched[length - 1].length == 0) {
+            length--;
+        }
+        circuit.sched = length == sched.length ? sched : Arrays.copyOf(sched, length);
+    }
+}
@@ -0,0 +1,379 @@
+package backend;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Netlist optimization pass, run on the compiled circuit between calibration
+ * and simulation. It rewrites the circuit into an equivalent one with fewer
+ * evaluated gates:
+ * - buffers are collapsed, their readers read the buffer's source instead
+ * - double inversions are removed
+ * - inputs tied to one value for the whole run are propagated as constants
+ * - gates of the same type on the same inputs are merged (structural hashing)
+ * - gates outside the fan-in cone of every output and DFF are dropped
+ *
+ * Node ids, outputs and DFFs are kept, so the optimized circuit gives the same
+ * states and outputs for every vector. Every rewrite also holds in three
+ * valued logic, so X values show up exactly where they did before.
+ */
+public class NetlistOptimizer {
+
+    private final CompiledCircuit circuit;
+    // Node every reader uses in place of this one, the node itself if none
+    private final int[] alias;
+    // Value of a node for the whole run, -1 if it is not constant
+    private final byte[] constant;
+    // Type of every node that is still evaluated, -1 for the others. Its
+    // inputs are pool[pinStart[n]] .. pool[pinStart[n] + pinCount[n] - 1]
+    private final byte[] keptType;
+    private final int[] pinStart;
+    private final int[] pinCount;
+    private int[] pool;
+    private int poolSize;
+    // A node holding 0 and a node holding 1, -1 while there is none
+    private final int[] constantSource = { -1, -1 };
+    // Evaluated gates by type and inputs
+    private final HashMap<PinKey, Integer> structure = new HashMap<>();
+
+    // What the last run removed
+    int buffers;
+    int inversions;
+    int constants;
+    int merged;
+    int dead;
+
+    NetlistOptimizer(CompiledCircuit circuit) {
+        this.circuit = circuit;
+        this.alias = new int[circuit.nodeCount];
+        this.constant = new byte[circuit.nodeCount];
+        this.keptType = new byte[circuit.nodeCount];
+        this.pinStart = new int[circuit.nodeCount];
+        this.pinCount = new int[circuit.nodeCount];
+        this.pool = new int[circuit.fanin.length + 16];
+        for (int node = 0; node < circuit.nodeCount; node++) {
+            alias[node] = node;
+        }
+        Arrays.fill(constant, (byte) -1);
+        Arrays.fill(keptType, (byte) -1);
+    }
+
+    /**
+     * Declares an input that has the same binary value in every vector
+     *
+     * @param node  the input node
+     * @param value Logic.ZERO or Logic.ONE
+     */
+    void tie(int node, int value) {
+        constant[node] = (byte) value;
+        if (constantSource[value] < 0)
+            constantSource[value] = node;
+    }
+
+    /**
+     * Finds the vector columns that hold the same binary value in every
+     * vector
+     *
+     * @param vectors the vector source, consumed but not closed
+     * @return the value of every tied column, -1 for the other columns
+     * @throws IOException
+     */
+    static int[] tiedColumns(VectorSource vectors) throws IOException {
+        int[] tied = null;
+        int state;
+        while (vectors.next()) {
+            if (tied == null) {
+                tied = new int[vectors.width()];
+                for (int j = 0; j < tied.length; j++) {
+                    state = vectors.state(j);
+                    tied[j] = state == Logic.ZERO || state == Logic.ONE ? state : -1;
+                }
+                continue;
+            }
+            for (int j = 0; j < tied.length; j++) {
+                if (tied[j] >= 0 && (j >= vectors.width() || vectors.state(j) != tied[j])) {
+                    tied[j] = -1;
+                }
+            }
+        }
+        return tied == null ? new int[0] : tied;
+    }
+
+    /**
+     * Rewrites the circuit
+     *
+     * @return the optimized circuit
+     */
+    CompiledCircuit run() {
+        final int[] faninStart = circuit.faninStart;
+        final int[] fanin = circuit.fanin;
+        final byte[] types = circuit.types;
+        int[] pins = new int[16];
+        int count, k;
+
+        // The evaluation order is topological, so the inputs of a node are
+        // rewritten before the node itself
+        for (int node : circuit.evalOrder) {
+            count = faninStart[node + 1] - faninStart[node];
+            if (pins.length < count) {
+                pins = new int[count];
+            }
+            for (k = 0; k < count; k++) {
+                pins[k] = alias[fanin[faninStart[node] + k]];
+            }
+            switch (types[node]) {
+                case CompiledCircuit.OUTPUT:
+                    // Outputs are read by id and stay, their readers skip them
+                    keep(node, CompiledCircuit.OUTPUT, pins, 1);
+                    alias[node] = pins[0];
+                    break;
+                case CompiledCircuit.BUF:
+                    alias[node] = pins[0];
+                    buffers++;
+                    break;
+                case CompiledCircuit.NOT:
+                    invert(node, pins[0]);
+                    break;
+                default:
+                    reduce(node, types[node], pins, count);
+            }
+        }
+
+        // A DFF samples its D input before the inputs of the new vector are
+        // applied, so it must not read an input that a buffer used to hold
+        final int[] dffs = circuit.dffs;
+        final int[] dffPins = new int[dffs.length];
+        int source, pin;
+        for (int i = 0; i < dffs.length; i++) {
+            source = fanin[faninStart[dffs[i]]];
+            pin = alias[source];
+            if (pin != source && types[pin] == CompiledCircuit.INPUT) {
+                if (keptType[source] < 0)
+                    keep(source, CompiledCircuit.BUF, new int[] { pin }, 1);
+                pin = source;
+            }
+            dffPins[i] = pin;
+        }
+
+        // Everything the outputs and DFFs read, directly or not
+        boolean[] live = new boolean[circuit.nodeCount];
+        int[] stack = new int[circuit.nodeCount];
+        int top = 0;
+        for (int output : circuit.outputIds.values()) {
+            if (!live[output]) {
+                live[output] = true;
+                stack[top++] = output;
+            }
+        }
+        for (int dffPin : dffPins) {
+            if (!live[dffPin]) {
+                live[dffPin] = true;
+                stack[top++] = dffPin;
+            }
+        }
+        int node;
+        while (top > 0) {
+            node = stack[--top];
+            if (keptType[node] < 0)
+                continue;
+            for (k = pinStart[node]; k < pinStart[node] + pinCount[node]; k++) {
+                if (!live[pool[k]]) {
+                    live[pool[k]] = true;
+                    stack[top++] = pool[k];
+                }
+            }
+        }
+
+        return build(dffPins, live);
+    }
+
+    /**
+     * Rewrites an AND, NAND, OR or NOR gate: constant inputs decide the gate
+     * or are dropped, repeated inputs are read once and a gate left with a
+     * single input becomes a buffer or an inverter
+     */
+    private void reduce(int node, byte type, int[] pins, int count) {
+        int control = type == CompiledCircuit.AND || type == CompiledCircuit.NAND ? Logic.ZERO : Logic.ONE;
+        int invert = type == CompiledCircuit.NAND || type == CompiledCircuit.NOR ? 1 : 0;
+        int left = 0;
+        for (int k = 0; k < count; k++) {
+            if (constant[pins[k]] == control) {
+                setConstant(node, control ^ invert);
+                return;
+            }
+            if (constant[pins[k]] < 0)
+                pins[left++] = pins[k];
+        }
+        // The gates are commutative and idempotent
+        Arrays.sort(pins, 0, left);
+        int unique = 0;
+        for (int k = 0; k < left; k++) {
+            if (unique == 0 || pins[unique - 1] != pins[k])
+                pins[unique++] = pins[k];
+        }
+        if (unique == 0) {
+            setConstant(node, (1 - control) ^ invert);
+        } else if (unique > 1) {
+            share(node, type, pins, unique);
+        } else if (invert == 1) {
+            invert(node, pins[0]);
+        } else {
+            alias[node] = pins[0];
+            buffers++;
+        }
+    }
+
+    /**
+     * Rewrites an inverter of source
+     */
+    private void invert(int node, int source) {
+        if (constant[source] >= 0) {
+            setConstant(node, 1 - constant[source]);
+        } else if (keptType[source] == CompiledCircuit.NOT) {
+            alias[node] = pool[pinStart[source]];
+            inversions++;
+        } else {
+            share(node, CompiledCircuit.NOT, new int[] { source }, 1);
+        }
+    }
+
+    private void setConstant(int node, int value) {
+        constants++;
+        if (constantSource[value] >= 0) {
+            alias[node] = constantSource[value];
+            return;
+        }
+        // Nothing holds the value yet: invert a node holding the other one
+        keep(node, CompiledCircuit.NOT, new int[] { constantSource[1 - value] }, 1);
+        constant[node] = (byte) value;
+        constantSource[value] = node;
+    }
+
+    /**
+     * Keeps a gate, or merges it into an identical one
+     */
+    private void share(int node, byte type, int[] pins, int count) {
+        PinKey key = new PinKey(type, pins, count);
+        Integer existing = structure.get(key);
+        if (existing != null) {
+            alias[node] = existing;
+            merged++;
+        } else {
+            keep(node, type, pins, count);
+            structure.put(key, node);
+        }
+    }
+
+    private void keep(int node, byte type, int[] pins, int count) {
+        if (poolSize + count > pool.length) {
+            pool = Arrays.copyOf(pool, Math.max(pool.length * 2, poolSize + count));
+        }
+        keptType[node] = type;
+        pinStart[node] = poolSize;
+        pinCount[node] = count;
+        System.arraycopy(pins, 0, pool, poolSize, count);
+        poolSize += count;
+    }
+
+    /**
+     * Lays out the rewritten circuit, levelized again
+     */
+    private CompiledCircuit build(int[] dffPins, boolean[] live) {
+        final int nodeCount = circuit.nodeCount;
+        byte[] types = circuit.types.clone();
+        int[] levels = circuit.levels.clone();
+        boolean[] evaluated = new boolean[nodeCount];
+        int maxLevel = 0;
+        int evaluatedCount = 0;
+        int level, k;
+        for (int node : circuit.evalOrder) {
+            if (keptType[node] < 0 || !live[node]) {
+                levels[node] = -1;
+                if (keptType[node] >= 0)
+                    dead++;
+                continue;
+            }
+            types[node] = keptType[node];
+            level = 0;
+            for (k = pinStart[node]; k < pinStart[node] + pinCount[node]; k++) {
+                level = Math.max(level, Math.max(levels[pool[k]], 0));
+            }
+            levels[node] = level + 1;
+            maxLevel = Math.max(maxLevel, level + 1);
+            evaluated[node] = true;
+            evaluatedCount++;
+        }
+
+        // Fan-ins: the rewritten inputs of evaluated gates and the D input of
+        // each DFF; nothing else is ever read
+        int[] dffPinOf = new int[nodeCount];
+        Arrays.fill(dffPinOf, -1);
+        for (int i = 0; i < circuit.dffs.length; i++) {
+            dffPinOf[circuit.dffs[i]] = dffPins[i];
+        }
+        int[] faninStart = new int[nodeCount + 1];
+        int edges = 0;
+        for (int node = 0; node < nodeCount; node++) {
+            faninStart[node] = edges;
+            if (evaluated[node]) {
+                edges += pinCount[node];
+            } else if (dffPinOf[node] >= 0) {
+                edges++;
+            }
+        }
+        faninStart[nodeCount] = edges;
+        int[] fanin = new int[edges];
+        for (int node = 0; node < nodeCount; node++) {
+            if (evaluated[node]) {
+                System.arraycopy(pool, pinStart[node], fanin, faninStart[node], pinCount[node]);
+            } else if (dffPinOf[node] >= 0) {
+                fanin[faninStart[node]] = dffPinOf[node];
+            }
+        }
+
+        // Ascending by level, keeping the old order within a level
+        int[] levelStart = new int[maxLevel + 2];
+        for (int node : circuit.evalOrder) {
+            if (evaluated[node])
+                levelStart[levels[node] + 1]++;
+        }
+        for (level = 0; level <= maxLevel; level++) {
+            levelStart[level + 1] += levelStart[level];
+        }
+        int[] next = Arrays.copyOf(levelStart, levelStart.length);
+        int[] evalOrder = new int[evaluatedCount];
+        for (int node : circuit.evalOrder) {
+            if (evaluated[node])
+                evalOrder[next[levels[node]]++] = node;
+        }
+
+        return new CompiledCircuit(circuit.names, types, levels, faninStart, fanin, evalOrder, levelStart,
+                circuit.dffs, circuit.stateDffs, circuit.inputIds, circuit.outputIds);
+    }
+
+    /**
+     * Type and sorted inputs of a gate, the structural hashing key
+     */
+    private static final class PinKey {
+        private final int[] key;
+        private final int hash;
+
+        PinKey(byte type, int[] pins, int count) {
+            key = new int[count + 1];
+            key[0] = type;
+            System.arraycopy(pins, 0, key, 1, count);
+            hash = Arrays.hashCode(key);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof PinKey && Arrays.equals(key, ((PinKey) other).key);
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package backend;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Hand written byte level tokenizer for structural Verilog. Works directly on
+ * a (usually memory-mapped) buffer, skips whitespace, line comments and block
+ * comments, and reports identifiers and the punctuation characters ( ) , ;
+ * without creating any objects per token
+ */
+public class NetlistTokenizer {
+
+    static final int EOF = -1;
+    static final int IDENTIFIER = 0;
+    static final int PUNCTUATION = 1;
+
+    private final ByteBuffer buffer;
+    private final int end;
+    private int position;
+    // Current token
+    int kind;
+    int start;
+    int length;
+    char punctuation;
+    int line = 1;
+
+    /**
+     * @param buffer the file contents
+     * @param from   first byte to tokenize
+     * @param to     end of the range to tokenize (exclusive)
+     */
+    NetlistTokenizer(ByteBuffer buffer, int from, int to) {
+        this.buffer = buffer;
+        this.position = from;
+        this.end = to;
+    }
+
+    /**
+     * Advances to the next token
+     * 
+     * @return the token kind: IDENTIFIER, PUNCTUATION or EOF
+     */
+    int next() {
+        int b;
+        // Skip whitespace and comments
+        while (true) {
+            if (position >= end) {
+                kind = EOF;
+                length = 0;
+                return kind;
+            }
+            b = buffer.get(position);
+            if (b == '\n') {
+                line++;
+                position++;
+            } else if (b == ' ' || b == '\t' || b == '\r' || b == '\f') {
+                position++;
+            } else if (b == '/' && position + 1 < end && buffer.get(position + 1) == '/') {
+                while (position < end && buffer.get(position) != '\n') {
+                    position++;
+                }
+            } else if (b == '/' && position + 1 < end && buffer.get(position + 1) == '*') {
+                position += 2;
+                while (position < end && !(buffer.get(position) == '*' && position + 1 < end
+                        && buffer.get(position + 1) == '/')) {
+                    if (buffer.get(position) == '\n')
+                        line++;
+                    position++;
+                }
+                position += 2;
+            } else {
+                break;
+            }
+        }
+
+        start = position;
+        if (b == '(' || b == ')' || b == ',' || b == ';') {
+            position++;
+            kind = PUNCTUATION;
+            punctuation = (char) b;
+            length = 1;
+            return kind;
+        }
+        if (b == '\\') {
+            // Escaped identifier, runs up to the next whitespace
+            position++;
+            start = position;
+            while (position < end && buffer.get(position) > ' ') {
+                position++;
+            }
+        } else if (isIdentifierByte(b)) {
+            while (position < end && isIdentifierByte(buffer.get(position))) {
+                position++;
+            }
+        } else {
+            throw new IllegalArgumentException("Unexpected character '" + (char) b + "' on line " + line);
+        }
+        kind = IDENTIFIER;
+        length = position - start;
+        return kind;
+    }
+
+    private static boolean isIdentifierByte(int b) {
+        return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9') || b == '_'
+                || b == '$';
+    }
+
+    /**
+     * Checks whether the current token is the given keyword
+     * 
+     * @param keyword lowercase ASCII keyword
+     * @return true on an exact match
+     */
+    boolean matches(String keyword) {
+        if (kind != IDENTIFIER || length != keyword.length())
+            return false;
+        for (int i = 0; i < length; i++) {
+            if (buffer.get(start + i) != keyword.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    boolean isPunctuation(char c) {
+        return kind == PUNCTUATION && punctuation == c;
+    }
+
+    /**
+     * Gate type named by the current token. Gate keywords are matched without
+     * regard to case, so NAND and nand name the same type
+     * 
+     * @return the type, or null if the token is not a gate keyword
+     */
+    GateType gateType() {
+        if (kind != IDENTIFIER)
+            return null;
+        switch (length) {
+            case 2:
+                return matchesIgnoreCase("or") ? GateType.OR : null;
+            case 3:
+                if (matchesIgnoreCase("and"))
+                    return GateType.AND;
+                if (matchesIgnoreCase("nor"))
+                    return GateType.NOR;
+                if (matchesIgnoreCase("not"))
+                    return GateType.NOT;
+                if (matchesIgnoreCase("dff"))
+                    return GateType.DFF;
+                if (matchesIgnoreCase("buf"))
+                    return GateType.BUF;
+                return null;
+            case 4:
+                return matchesIgnoreCase("nand") ? GateType.NAND : null;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Like matches, but ignores the case of ASCII letters in the token
+     * 
+     * @param keyword lowercase ASCII keyword
+     */
+    private boolean matchesIgnoreCase(String keyword) {
+        if (length != keyword.length())
+            return false;
+        for (int i = 0; i < length; i++) {
+            int b = buffer.get(start + i);
+            if (b >= 'A' && b <= 'Z')
+                b += 'a' - 'A';
+            if (b != keyword.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the current token as a new String
+     */
+    String text() {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(start + i);
+        }
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Looks the current token up in a name table, adding it on first sight
+     * 
+     * @return the index of the name in the table
+     */
+    int intern(NameTable names) {
+        return names.intern(buffer, start, length);
+    }
+
+    /**
+     * Skips everything up to and including the next ';'. Works on the raw
+     * bytes, so statements the parser does not understand (assign a = b;) can
+     * be skipped even though they contain characters that are not tokens
+     */
+    void skipStatement() {
+        while (position < end) {
+            int b = buffer.get(position);
+            if (b == '\n') {
+                line++;
+            } else if (b == '/' && position + 1 < end && buffer.get(position + 1) == '/') {
+                while (position < end && buffer.get(position) != '\n') {
+                    position++;
+                }
+                continue;
+            } else if (b == '/' && position + 1 < end && buffer.get(position + 1) == '*') {
+                position += 2;
+                while (position < end && !(buffer.get(position) == '*' && position + 1 < end
+                        && buffer.get(position + 1) == '/')) {
+                    if (buffer.get(position) == '\n')
+                        line++;
+                    position++;
+                }
+                position += 2;
+                continue;
+            } else if (b == ';') {
+                position++;
+                return;
+            }
+            position++;
+        }
+    }
+
+    int position() {
+        return position;
+    }
+}
@@ -0,0 +1,191 @@
+package backend;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Renumbers the nodes of a compiled circuit so that the states a gate reads
+ * sit close to each other and to the gate itself. Node ids come from the
+ * order inputs, gates and outputs were registered in, which follows the file
+ * and HashMap iteration order, so the fan-ins of a gate are usually spread
+ * over the whole state array.
+ *
+ * New ids are handed out by level: first the inputs and DFFs, then every
+ * level of the evaluation order. Within a level the gates are taken in the
+ * order of their lowest numbered fan-in (the Cuthill-McKee rule, applied one
+ * level at a time), so gates reading neighbouring nets become neighbours
+ * themselves and the evaluation order walks the state array front to back.
+ * Nodes that are never evaluated go last. The renumbered circuit is the same
+ * circuit, only its ids differ, so results are unchanged; checkpoints are tied
+ * to one numbering.
+ */
+public class NodeRenumberer {
+
+    // States per 64 byte cache line, one byte per state
+    static final int STATES_PER_LINE = 64;
+    // Modelled data cache: 64 sets of 8 lines, 32 KB
+    private static final int CACHE_SETS = 64;
+    private static final int CACHE_WAYS = 8;
+
+    private final CompiledCircuit circuit;
+
+    NodeRenumberer(CompiledCircuit circuit) {
+        this.circuit = circuit;
+    }
+
+    /**
+     * @return the renumbered circuit
+     */
+    CompiledCircuit run() {
+        final int nodeCount = circuit.nodeCount;
+        final int[] faninStart = circuit.faninStart;
+        final int[] fanin = circuit.fanin;
+        final int[] evalOrder = circuit.evalOrder;
+        final int[] levelStart = circuit.levelStart;
+        int[] newId = new int[nodeCount];
+        Arrays.fill(newId, -1);
+        int next = 0;
+
+        // Sources: the inputs, then the DFFs, each in their old order
+        for (int node = 0; node < nodeCount; node++) {
+            if (circuit.types[node] == CompiledCircuit.INPUT)
+                newId[node] = next++;
+        }
+        for (int node = 0; node < nodeCount; node++) {
+            if (circuit.types[node] == CompiledCircuit.DFF && newId[node] < 0)
+                newId[node] = next++;
+        }
+
+        // Levels in order, each sorted by its lowest numbered fan-in. Fan-ins
+        // sit on lower levels, so they are numbered already
+        int[] evalOrderNew = new int[evalOrder.length];
+        long[] keys = new long[evalOrder.length];
+        int node, k, key;
+        for (int level = 0; level + 1 < levelStart.length; level++) {
+            int from = levelStart[level];
+            int to = levelStart[level + 1];
+            for (int i = from; i < to; i++) {
+                node = evalOrder[i];
+                key = Integer.MAX_VALUE;
+                for (k = faninStart[node]; k < faninStart[node + 1]; k++) {
+                    if (newId[fanin[k]] >= 0)
+                        key = Math.min(key, newId[fanin[k]]);
+                }
+                // The position breaks ties, keeping the old order
+                keys[i] = ((long) key << 32) | (i - from);
+            }
+            Arrays.sort(keys, from, to);
+            for (int i = from; i < to; i++) {
+                node = evalOrder[from + (int) keys[i]];
+                newId[node] = next;
+                evalOrderNew[i] = next++;
+            }
+        }
+
+        // Whatever is left is never evaluated
+        for (node = 0; node < nodeCount; node++) {
+            if (newId[node] < 0)
+                newId[node] = next++;
+        }
+
+        String[] names = new String[nodeCount];
+        byte[] types = new byte[nodeCount];
+        int[] levels = new int[nodeCount];
+        int[] oldId = new int[nodeCount];
+        for (node = 0; node < nodeCount; node++) {
+            oldId[newId[node]] = node;
+            names[newId[node]] = circuit.names[node];
+            types[newId[node]] = circuit.types[node];
+            levels[newId[node]] = circuit.levels[node];
+        }
+        int[] faninStartNew = new int[nodeCount + 1];
+        int[] faninNew = new int[fanin.length];
+        int edges = 0;
+        for (int id = 0; id < nodeCount; id++) {
+            faninStartNew[id] = edges;
+            node = oldId[id];
+            // Pin order is kept
+            for (k = faninStart[node]; k < faninStart[node + 1]; k++) {
+                faninNew[edges++] = newId[fanin[k]];
+            }
+        }
+        faninStartNew[nodeCount] = edges;
+
+        return new CompiledCircuit(names, types, levels, faninStartNew, faninNew, evalOrderNew, levelStart,
+                map(circuit.dffs, newId), map(circuit.stateDffs, newId), map(circuit.inputIds, newId),
+                map(circuit.outputIds, newId));
+    }
+
+    private static int[] map(int[] ids, int[] newId) {
+        int[] mapped = new int[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            mapped[i] = newId[ids[i]];
+        }
+        return mapped;
+    }
+
+    private static HashMap<String, Integer> map(HashMap<String, Integer> ids, int[] newId) {
+        HashMap<String, Integer> mapped = new HashMap<>(ids.size() * 2);
+        for (Map.Entry<String, Integer> entry : ids.entrySet()) {
+            mapped.put(entry.getKey(), newId[entry.getValue()]);
+        }
+        return mapped;
+    }
+
+    /**
+     * Memory locality of the evaluation order: how far, in ids, a gate's
+     * fan-ins are from the gate on average, and how many cache misses one
+     * step has per gate on a modelled 32 KB, 8-way LRU data cache holding the
+     * byte state array. Every gate reads its fan-ins and writes itself. The
+     * JVM has no portable access to the hardware miss counters, so this
+     * stands in for them
+     *
+     * @param circuit the compiled circuit
+     * @return {mean fan-in distance, modelled cache misses per gate}
+     */
+    static double[] locality(CompiledCircuit circuit) {
+        long[] cache = new long[CACHE_SETS * CACHE_WAYS];
+        Arrays.fill(cache, -1);
+        long distance = 0;
+        long edges = 0;
+        long misses = 0;
+        // Two steps, the first one warms the cache
+        for (int pass = 0; pass < 2; pass++) {
+            misses = 0;
+            for (int node : circuit.evalOrder) {
+                for (int k = circuit.faninStart[node]; k < circuit.faninStart[node + 1]; k++) {
+                    if (pass == 0) {
+                        distance += Math.abs(circuit.fanin[k] - node);
+                        edges++;
+                    }
+                    if (!touch(cache, circuit.fanin[k] / STATES_PER_LINE))
+                        misses++;
+                }
+                if (!touch(cache, node / STATES_PER_LINE))
+                    misses++;
+            }
+        }
+        int gates = circuit.evalOrder.length;
+        return new double[] { edges == 0 ? 0.0 : (double) distance / edges,
+                gates == 0 ? 0.0 : (double) misses / gates };
+    }
+
+    /**
+     * Accesses one line of the modelled cache, each set kept most recently
+     * used first
+     *
+     * @return true on a hit
+     */
+    private static boolean touch(long[] cache, long line) {
+        int base = (int) (line % CACHE_SETS) * CACHE_WAYS;
+        int way = 0;
+        while (way < CACHE_WAYS - 1 && cache[base + way] != line) {
+            way++;
+        }
+        boolean hit = cache[base + way] == line;
+        System.arraycopy(cache, base, cache, base + 1, way);
+        cache[base] = line;
+        return hit;
+    }
+}
@@ -0,0 +1,131 @@
+package backend;
+
+import java.util.Arrays;
+
+/**
+ * Compiled engine that keeps every net in 2 bits, 32 nets to a long, instead
+ * of a byte per net. The two bits are the "can be 1" and "can be 0" rails of
+ * the dual-rail encoding used by BitParallelSimulator, for a single pattern:
+ * 0 is 10b, 1 is 01b and X is 11b.
+ *
+ * In that encoding every gate type is the same bitwise kernel. Folding a
+ * fan-in into the result ANDs one rail and ORs the other (AND and NAND AND
+ * the "can be 1" rail, OR and NOR the "can be 0" rail), and inverting swaps
+ * the rails. The rail to AND and whether to invert are precomputed per node,
+ * so evaluating a gate has no branch other than its fan-in loop, for any
+ * fan-in count.
+ */
+public class PackedSimulator extends CompiledSimulator {
+
+    // Code of a 0 / 1 / 4 state, and back
+    private static final int[] ENCODE = { 2, 1, 0, 0, 3 };
+    private static final byte[] DECODE = { Logic.X, Logic.ONE, Logic.ZERO, Logic.X };
+
+    // Nets 32 * w .. 32 * w + 31 live in packed[w], bits 2 * (n % 32) and up
+    private final long[] packed;
+    // Per node: bits 0 - 1 are the rails ANDed by its fan-in fold, bit 2 is
+    // set when the result is inverted
+    private final byte[] kernels;
+    private final int[] sampledCodes;
+
+    PackedSimulator(CompiledCircuit circuit) {
+        super(circuit, 0);
+        this.packed = new long[(circuit.nodeCount + 31) >>> 5];
+        this.kernels = new byte[circuit.nodeCount];
+        this.sampledCodes = new int[circuit.dffs.length];
+        // Everything starts as X
+        Arrays.fill(packed, -1L);
+        for (int node : circuit.evalOrder) {
+            switch (circuit.types[node]) {
+                case CompiledCircuit.AND:
+                    kernels[node] = 1;
+                    break;
+                case CompiledCircuit.NAND:
+                    kernels[node] = 1 | 4;
+                    break;
+                case CompiledCircuit.OR:
+                    kernels[node] = 2;
+                    break;
+                case CompiledCircuit.NOR:
+                    kernels[node] = 2 | 4;
+                    break;
+                case CompiledCircuit.NOT:
+                    kernels[node] = 4;
+                    break;
+                default:
+                    // BUF and OUTPUT copy their single fan-in
+                    kernels[node] = 0;
+            }
+        }
+    }
+
+    private int code(int node) {
+        return (int) (packed[node >>> 5] >>> ((node & 31) << 1)) & 3;
+    }
+
+    private void store(int node, int code) {
+        int shift = (node & 31) << 1;
+        packed[node >>> 5] = (packed[node >>> 5] & ~(3L << shift)) | ((long) code << shift);
+    }
+
+    @Override
+    void setState(int node, int state) {
+        store(node, ENCODE[state]);
+    }
+
+    @Override
+    int getState(int node) {
+        return DECODE[code(node)];
+    }
+
+    @Override
+    void reset() {
+        Arrays.fill(packed, -1L);
+    }
+
+    @Override
+    byte[] saveStates() {
+        byte[] saved = new byte[circuit.nodeCount];
+        for (int node = 0; node < saved.length; node++) {
+            saved[node] = DECODE[code(node)];
+        }
+        return saved;
+    }
+
+    @Override
+    void clockDffs() {
+        final int[] dffs = circuit.dffs;
+        final int[] faninStart = circuit.faninStart;
+        final int[] fanin = circuit.fanin;
+        for (int i = 0; i < dffs.length; i++) {
+            sampledCodes[i] = code(fanin[faninStart[dffs[i]]]);
+        }
+        for (int i = 0; i < dffs.length; i++) {
+            store(dffs[i], sampledCodes[i]);
+        }
+    }
+
+    @Override
+    int evaluateNode(int node) {
+        final long[] packed = this.packed;
+        final int[] fanin = circuit.fanin;
+        final int kernel = kernels[node];
+        final int andRails = kernel & 3;
+        final int orRails = ~kernel & 3;
+        int k = circuit.faninStart[node];
+        final int end = circuit.faninStart[node + 1];
+        int src = fanin[k++];
+        int value = (int) (packed[src >>> 5] >>> ((src & 31) << 1)) & 3;
+        int input;
+        while (k < end) {
+            src = fanin[k++];
+            input = (int) (packed[src >>> 5] >>> ((src & 31) << 1)) & 3;
+            value = (value & input & andRails) | ((value | input) & orRails);
+        }
+        // Swap the rails when bit 2 of the kernel is set
+        int swapped = ((value & 1) << 1) | (value >>> 1);
+        value ^= (value ^ swapped) & -(kernel >>> 2);
+        store(node, value);
+        return DECODE[value];
+    }
+}
@@ -0,0 +1,24 @@
+package backend;
+
+/**
+ * Selects how VerilogParser reads the netlist
+ */
+public enum ParseMode {
+    SEQUENTIAL, PARALLEL, COMPARE;
+
+    static ParseMode readMode(String mode) {
+        switch (mode) {
+            case "sequential":
+                return SEQUENTIAL;
+
+            case "parallel":
+                return PARALLEL;
+
+            case "compare":
+                return COMPARE;
+
+            default:
+                throw new IllegalArgumentException("Unknown parse mode: " + mode);
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package backend;
+
+/**
+ * Output formats for simulation results
+ */
+public enum ResultFormat {
+    TEXT, COMPACT, BINARY;
+
+    static ResultFormat readFormat(String format) {
+        switch (format) {
+            case "text":
+                return TEXT;
+
+            case "compact":
+                return COMPACT;
+
+            case "binary":
+                return BINARY;
+
+            default:
+                throw new IllegalArgumentException("Unknown result format: " + format);
+        }
+    }
+}
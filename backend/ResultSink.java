@@ -0,0 +1,22 @@
+package backend;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Destination for per-vector simulation results. Implementations decide on
+ * the output format; the simulators only hand over primitive values
+ */
+public interface ResultSink extends Closeable {
+
+    /**
+     * Records the result of one vector
+     * 
+     * @param inputs     the vector as written in the vector file
+     * @param inputCount number of valid characters in inputs
+     * @param states     states of the reported DFFs, 0, 1 or 4 for X
+     * @param outputs    states of the outputs in print order
+     * @throws IOException
+     */
+    void write(char[] inputs, int inputCount, byte[] states, byte[] outputs) throws IOException;
+}
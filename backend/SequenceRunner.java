@@ -0,0 +1,203 @@
+package backend;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+
+/**
+ * Simulates the independent sequences of a vector stream (the runs between
+ * RESET lines, see VectorSource.reset) side by side on a pool of worker
+ * threads. The calling thread reads the vectors and cuts them into sequences,
+ * each worker simulates whole sequences on its own SimulationContext and
+ * records their results, and the calling thread hands the recorded results to
+ * the sink in file order. The output is therefore the same as a run on one
+ * thread, whatever the timing. At most a few sequences per worker are held in
+ * memory at once. A sequence that grows past STREAM_CHUNK vectors (a file
+ * without RESET lines, one very long testbench) is not held as a whole: the
+ * sequences before it are written, and it is simulated on the calling thread
+ * chunk by chunk as it is read.
+ */
+public class SequenceRunner {
+
+    // Sequences in flight per worker, read ahead or waiting to be written
+    private static final int WINDOW_PER_THREAD = 4;
+    // Vectors of a sequence read before it is simulated on the calling
+    // thread, and the chunks the rest is read in then
+    static final int STREAM_CHUNK = 1 << 14;
+
+    private final int threads;
+    private final ThreadLocal<SimulationContext> contexts;
+    // Every context made by the workers, closed at the end of a run
+    private final ArrayList<SimulationContext> made = new ArrayList<>();
+    // Vectors simulated by the last run
+    long vectorCount;
+    long sequenceCount;
+    // State after the last vector of the last run, null if it had none
+    StateCheckpoint lastState;
+
+    /**
+     * @param threads number of worker threads
+     * @param factory makes the context of a worker, called once per worker
+     */
+    SequenceRunner(int threads, Supplier<SimulationContext> factory) {
+        this.threads = threads;
+        this.contexts = ThreadLocal.withInitial(() -> {
+            SimulationContext context = factory.get();
+            // The calling thread checks the widths once for the whole run
+            context.checked = true;
+            synchronized (made) {
+                made.add(context);
+            }
+            return context;
+        });
+    }
+
+    /**
+     * Simulates every sequence of a vector stream
+     *
+     * @param vectors       the vector source, consumed but not closed
+     * @param orderedInputs input names in vector column order
+     * @param sink          receives one record per vector, in file order
+     * @param start         state the first sequence starts from, null for all
+     *                      X; unused when the stream starts with a RESET line
+     * @throws IOException
+     */
+    void run(VectorSource vectors, String[] orderedInputs, ResultSink sink, StateCheckpoint start)
+            throws IOException {
+        vectorCount = 0;
+        sequenceCount = 0;
+        lastState = null;
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        ArrayDeque<Future<Sequence>> inFlight = new ArrayDeque<>();
+        try {
+            Sequence current = null;
+            boolean checked = false;
+            // The rest of the current sequence runs on this thread, chunk by
+            // chunk
+            boolean streaming = false;
+            while (vectors.next()) {
+                if (!checked) {
+                    checked = Circuit.checkWidth(orderedInputs, vectors);
+                }
+                if (current == null || vectors.reset()) {
+                    if (streaming) {
+                        write(current.simulate(), sink);
+                        streaming = false;
+                    } else if (current != null) {
+                        inFlight.add(pool.submit(current::simulate));
+                        while (inFlight.size() >= threads * WINDOW_PER_THREAD) {
+                            replay(inFlight.poll(), sink);
+                        }
+                    }
+                    current = new Sequence(current == null && !vectors.reset() ? start : null, false);
+                } else if (current.count == STREAM_CHUNK) {
+                    if (!streaming) {
+                        // Too long to hold: write what is in flight, then
+                        // follow the sequence as it is read
+                        while (!inFlight.isEmpty()) {
+                            replay(inFlight.poll(), sink);
+                        }
+                        streaming = true;
+                    }
+                    write(current.simulate(), sink);
+                    current = new Sequence(null, true);
+                }
+                current.add(vectors);
+            }
+            if (current != null) {
+                current.last = true;
+                if (streaming) {
+                    write(current.simulate(), sink);
+                } else {
+                    inFlight.add(pool.submit(current::simulate));
+                }
+            }
+            while (!inFlight.isEmpty()) {
+                replay(inFlight.poll(), sink);
+            }
+        } finally {
+            pool.shutdownNow();
+            synchronized (made) {
+                for (SimulationContext context : made) {
+                    context.close();
+                }
+                made.clear();
+            }
+        }
+    }
+
+    private void replay(Future<Sequence> future, ResultSink sink) throws IOException {
+        Sequence sequence;
+        try {
+            sequence = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while simulating sequences", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            // ForkJoinPool rethrows a copy of a worker's exception that wraps
+            // the original
+            if (cause != null && cause.getCause() != null && cause.getClass() == cause.getCause().getClass())
+                cause = cause.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new IllegalStateException(cause);
+        }
+        write(sequence, sink);
+    }
+
+    /**
+     * Hands a simulated sequence to the sink and counts it
+     */
+    private void write(Sequence sequence, ResultSink sink) throws IOException {
+        sequence.replay(sink);
+        vectorCount += sequence.count;
+        if (!sequence.continues)
+            sequenceCount++;
+        if (sequence.last)
+            lastState = sequence.end;
+    }
+
+    /**
+     * The vectors of one sequence, or of one chunk of a streamed sequence,
+     * then its results
+     */
+    private final class Sequence extends BufferedSequence {
+        private final StateCheckpoint start;
+        // A later chunk of a streamed sequence, simulated from where the
+        // previous chunk ended on the same context
+        final boolean continues;
+        boolean last;
+        StateCheckpoint end;
+
+        Sequence(StateCheckpoint start, boolean continues) {
+            this.start = start;
+            this.continues = continues;
+        }
+
+        /**
+         * Runs on a worker, or on the calling thread for a streamed sequence:
+         * simulates the sequence on the context of the thread
+         */
+        Sequence simulate() throws IOException {
+            SimulationContext context = contexts.get();
+            if (continues) {
+                // Carries on from the previous chunk
+            } else if (start != null) {
+                context.restore(start);
+            } else {
+                context.reset();
+            }
+            context.run(this, this);
+            if (last)
+                end = context.checkpoint();
+            return this;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package backend;
+
+import java.io.IOException;
+
+/**
+ * Everything one simulation changes, kept apart from the circuit it runs on.
+ * The CompiledCircuit (node types, fan-in and fan-out arrays, levels,
+ * evaluation order) is never written after it is built, so any number of
+ * contexts can simulate it from different threads at once, without locking
+ * and with one copy of the netlist in memory. A context holds the engine with
+ * its net states, the port ids resolved for one vector and print order, the
+ * record buffers and the cycle count. A context itself is used by one thread
+ * at a time.
+ *
+ * Contexts are made by Circuit.newContext and closed when no longer needed.
+ * The legacy engine keeps its states in the Entity objects and has no
+ * context.
+ */
+public class SimulationContext {
+
+    final CompiledCircuit circuit;
+    final CompiledSimulator simulator;
+    private final String[] orderedInputs;
+    private final int[] inputIds;
+    private final int[] outputIds;
+    private final int[] stateIds;
+    private final byte[] stateValues;
+    private final byte[] outputValues;
+    private char[] text;
+    // The vector width was checked against the inputs
+    boolean checked;
+    // Vectors simulated since the start of the sequence, including those
+    // before a restored checkpoint
+    long cycles;
+
+    /**
+     * @param simulator      the engine, owned by this context
+     * @param orderedInputs  input names in vector column order
+     * @param orderedOutputs output names in print order
+     */
+    SimulationContext(CompiledSimulator simulator, String[] orderedInputs, String[] orderedOutputs) {
+        this.circuit = simulator.circuit;
+        this.simulator = simulator;
+        this.orderedInputs = orderedInputs;
+        this.inputIds = circuit.resolveInputs(orderedInputs);
+        this.outputIds = circuit.resolveOutputs(orderedOutputs);
+        this.stateIds = circuit.stateDffs;
+        this.stateValues = new byte[stateIds.length];
+        this.outputValues = new byte[outputIds.length];
+        this.text = new char[orderedInputs.length];
+    }
+
+    /**
+     * Simulates every vector of a source, top to bottom, continuing from the
+     * current state. A RESET line starts over from the all-X state
+     *
+     * @param vectors the vector source, consumed but not closed
+     * @param sink    receives one record per vector
+     * @return the number of vectors simulated
+     * @throws IOException
+     */
+    public long run(VectorSource vectors, ResultSink sink) throws IOException {
+        long count = 0;
+        int j;
+        while (vectors.next()) {
+            if (!checked) {
+                checked = Circuit.checkWidth(orderedInputs, vectors);
+            }
+            if (vectors.reset()) {
+                reset();
+            }
+            count++;
+            cycles++;
+            // Assign input states
+            for (j = 0; j < inputIds.length; j++) {
+                simulator.setState(inputIds[j], vectors.state(j));
+            }
+            // Simulate circuit
+            simulator.step();
+
+            // Record inputs, states and outputs
+            text = Circuit.readText(vectors, text);
+            for (j = 0; j < stateIds.length; j++) {
+                stateValues[j] = (byte) simulator.getState(stateIds[j]);
+            }
+            for (j = 0; j < outputIds.length; j++) {
+                outputValues[j] = (byte) simulator.getState(outputIds[j]);
+            }
+            sink.write(text, vectors.width(), stateValues, outputValues);
+        }
+        return count;
+    }
+
+    /**
+     * Starts a new sequence from the all-X state
+     */
+    public void reset() {
+        simulator.reset();
+        cycles = 0;
+    }
+
+    /**
+     * Stops the engine's worker threads, if it has any. The state can still
+     * be checkpointed
+     */
+    public void close() {
+        simulator.close();
+    }
+
+    /**
+     * @return the current state, see StateCheckpoint
+     */
+    public StateCheckpoint checkpoint() {
+        return new StateCheckpoint(StateCheckpoint.fingerprint(circuit), cycles, simulator.saveStates());
+    }
+
+    /**
+     * Continues from a checkpoint instead of the current state. Only the
+     * inputs and DFFs are taken from the checkpoint; every gate is evaluated
+     * again from them. The checkpoint may come from another form of the
+     * circuit, optimized or not, whose gates hold other values: the
+     * optimizer leaves the nodes it aliases away at X
+     *
+     * @param checkpoint a checkpoint of the same circuit
+     */
+    public void restore(StateCheckpoint checkpoint) {
+        if (!checkpoint.fits(circuit)) {
+            throw new IllegalArgumentException("Checkpoint was taken on another circuit");
+        }
+        simulator.reset();
+        for (int node = 0; node < circuit.nodeCount; node++) {
+            if (circuit.types[node] == CompiledCircuit.INPUT || circuit.types[node] == CompiledCircuit.DFF)
+                simulator.setState(node, checkpoint.states[node]);
+        }
+        simulator.evaluate(0, circuit.evalOrder.length);
+        cycles = checkpoint.cycles;
+    }
+}
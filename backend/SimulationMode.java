@@ -0,0 +1,39 @@
+package backend;
+
+/**
+ * Selects the engine used by Circuit.simulateCircuit
+ */
+public enum SimulationMode {
+    LEGACY, COMPILED, BIT_PARALLEL, EVENT_DRIVEN, GENERATED, PACKED, LEVEL_PARALLEL, WIDE;
+
+    static SimulationMode readMode(String mode) {
+        switch (mode) {
+            case "legacy":
+                return LEGACY;
+
+            case "compiled":
+                return COMPILED;
+
+            case "parallel":
+                return BIT_PARALLEL;
+
+            case "event":
+                return EVENT_DRIVEN;
+
+            case "generated":
+                return GENERATED;
+
+            case "packed":
+                return PACKED;
+
+            case "levels":
+                return LEVEL_PARALLEL;
+
+            case "wide":
+                return WIDE;
+
+            default:
+                throw new IllegalArgumentException("Unknown simulation mode: " + mode);
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package backend;
+
+/**
+ * Command line switches accepted after the netlist and vector file paths.
+ * Every option has the form --name=value
+ */
+public class SimulationOptions {
+
+    SimulationMode mode = SimulationMode.COMPILED;
+    ResultFormat format = ResultFormat.TEXT;
+    boolean delta;
+    ParseMode parse = ParseMode.SEQUENTIAL;
+    boolean cache = true;
+    FaultMode faults = FaultMode.NONE;
+    boolean metrics;
+    NetMode nets = NetMode.BUFFERED;
+    boolean optimize;
+    // Renumber nodes for cache locality, see NodeRenumberer
+    boolean renumber;
+    // Checkpoint files, null when not used
+    String resume;
+    String checkpoint;
+    // Worker threads for independent vector sequences
+    int threads = 1;
+    // Threads per wide level and the width that makes a level wide, for the
+    // level-parallel engine
+    int levelThreads = Runtime.getRuntime().availableProcessors();
+    int levelThreshold = LevelParallelSimulator.DEFAULT_THRESHOLD;
+    // Lanes per net in wide mode
+    int lanes = WideSimulator.DEFAULT_LANES;
+    // Evaluate the wide lanes with the Vector API kernel instead of scalar
+    // loops
+    boolean vectorKernel;
+
+    /**
+     * Parses the optional switches of the command line
+     * 
+     * @param args  the full command line
+     * @param start index of the first optional argument
+     * @return the parsed options
+     */
+    static SimulationOptions parse(String[] args, int start) {
+        SimulationOptions options = new SimulationOptions();
+        for (int i = start; i < args.length; i++) {
+            String arg = args[i];
+            int split = arg.indexOf('=');
+            if (!arg.startsWith("--") || split < 0) {
+                throw new IllegalArgumentException("Invalid option: " + arg);
+            }
+            String name = arg.substring(2, split);
+            String value = arg.substring(split + 1);
+            switch (name) {
+                case "mode":
+                    options.mode = SimulationMode.readMode(value);
+                    break;
+
+                case "format":
+                    options.format = ResultFormat.readFormat(value);
+                    break;
+
+                case "delta":
+                    options.delta = readBoolean(arg, value);
+                    break;
+
+                case "parse":
+                    options.parse = ParseMode.readMode(value);
+                    break;
+
+                case "faults":
+                    options.faults = FaultMode.readMode(value);
+                    break;
+
+                case "metrics":
+                    options.metrics = readBoolean(arg, value);
+                    break;
+
+                case "nets":
+                    options.nets = NetMode.readMode(value);
+                    break;
+
+                case "optimize":
+                    options.optimize = readBoolean(arg, value);
+                    break;
+
+                case "renumber":
+                    options.renumber = readBoolean(arg, value);
+                    break;
+
+                case "resume":
+                    options.resume = value;
+                    break;
+
+                case "checkpoint":
+                    options.checkpoint = value;
+                    break;
+
+                case "threads":
+                    options.threads = readThreads(arg, value);
+                    break;
+
+                case "level-threads":
+                    options.levelThreads = readThreads(arg, value);
+                    break;
+
+                case "level-threshold":
+                    options.levelThreshold = readCount(arg, value);
+                    break;
+
+                case "lanes":
+                    options.lanes = readLanes(arg, value);
+                    break;
+
+                case "kernel":
+                    options.vectorKernel = readKernel(arg, value);
+                    break;
+
+                case "cache":
+                    options.cache = readBoolean(arg, value);
+                    break;
+
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+        return options;
+    }
+
+    private static boolean readBoolean(String arg, String value) {
+        switch (value) {
+            case "true":
+                return true;
+
+            case "false":
+                return false;
+
+            default:
+                throw new IllegalArgumentException("Expected true or false: " + arg);
+        }
+    }
+
+    private static int readThreads(String arg, String value) {
+        int threads = readCount(arg, value);
+        return threads == 0 ? Runtime.getRuntime().availableProcessors() : threads;
+    }
+
+    private static int readLanes(String arg, String value) {
+        switch (value) {
+            case "256":
+                return 256;
+
+            case "512":
+                return 512;
+
+            default:
+                throw new IllegalArgumentException("Expected 256 or 512: " + arg);
+        }
+    }
+
+    private static boolean readKernel(String arg, String value) {
+        switch (value) {
+            case "scalar":
+                return false;
+
+            case "vector":
+                return true;
+
+            default:
+                throw new IllegalArgumentException("Expected scalar or vector: " + arg);
+        }
+    }
+
+    private static int readCount(String arg, String value) {
+        int count;
+        try {
+            count = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Expected a count: " + arg);
+        }
+        if (count < 0) {
+            throw new IllegalArgumentException("Expected a count: " + arg);
+        }
+        return count;
+    }
+
+    static String usage() {
+        return "Options:\n"
+                + "  --mode=legacy|compiled|parallel|event|generated|packed|levels|wide   simulation engine (default compiled)\n"
+                + "  --format=text|compact|binary   result format (default text)\n"
+                + "  --delta=true|false   delta encode compact and binary results (default false)\n"
+                + "  --parse=sequential|parallel|compare   netlist parser, compare times both first\n"
+                + "  --faults=none|combinational|sequential   grade the vectors with stuck-at fault simulation, combinational only for circuits without DFFs (default none)\n"
+                + "  --metrics=true|false   write phase timings and evaluation counts to <netlist>_metrics.json\n"
+                + "  --nets=buffered|direct   BUF gate per wire connection, or direct connections (default buffered)\n"
+                + "  --optimize=true|false   collapse buffers, propagate tied inputs, merge and prune gates (default false)\n"
+                + "  --renumber=true|false   renumber nodes by level and fan-in locality before simulating (default false)\n"
+                + "  --resume=<file>   start from the state saved in a checkpoint file instead of all X\n"
+                + "  --checkpoint=<file>   save the state after the last vector to a checkpoint file\n"
+                + "  --threads=N   simulate the sequences between RESET lines on N threads, 0 for one per core (default 1)\n"
+                + "  --level-threads=N   threads per wide level in levels mode, at most one per core (default one per core)\n"
+                + "  --level-threshold=N   gates a level needs to be split over threads in levels mode (default "
+                + LevelParallelSimulator.DEFAULT_THRESHOLD + ")\n"
+                + "  --lanes=256|512   vectors or sequences per net in wide mode (default "
+                + WideSimulator.DEFAULT_LANES + ")\n"
+                + "  --kernel=scalar|vector   wide mode gate kernel, vector needs --add-modules jdk.incubator.vector (default scalar)\n"
+                + "  --cache=true|false   reuse the compiled circuit saved in <netlist>.simcache (default true)\n";
+    }
+}
@@ -0,0 +1,27 @@
+package backend;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * JFR event for one timed phase of a run (parse, levelize, simulate, ...)
+ */
+@Name("backend.SimulationPhase")
+@Label("Simulation Phase")
+@Category("Simulator")
+@Description("Time spent in one phase of a simulation run")
+public class SimulationPhaseEvent extends jdk.jfr.Event {
+
+    @Label("Circuit")
+    String circuit;
+
+    @Label("Phase")
+    String phase;
+
+    @Label("Duration")
+    @Timespan(Timespan.NANOSECONDS)
+    long nanos;
+}
@@ -0,0 +1,33 @@
+package backend;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JFR event summarizing a finished simulation run
+ */
+@Name("backend.SimulationRun")
+@Label("Simulation Run")
+@Category("Simulator")
+@Description("Vectors, gate evaluations and allocation of a simulation run")
+public class SimulationRunEvent extends jdk.jfr.Event {
+
+    @Label("Circuit")
+    String circuit;
+
+    @Label("Mode")
+    String mode;
+
+    @Label("Vectors")
+    long vectors;
+
+    @Label("Gate Evaluations")
+    long gateEvaluations;
+
+    @Label("Allocated")
+    @DataAmount
+    long allocatedBytes;
+}
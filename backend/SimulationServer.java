@@ -0,0 +1,351 @@
+package backend;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Long-lived simulation daemon. Circuits are parsed and compiled once and stay
+ * resident; every job then only pays for simulating its vectors. Clients talk
+ * a line protocol over a loopback socket (one session per connection) or over
+ * stdin / stdout:
+ *
+ * <pre>
+ * LOAD &lt;id&gt; &lt;netlist&gt; [options]   parse and compile a netlist as &lt;id&gt;
+ * SIM &lt;id&gt; [options]              simulate the vector lines that follow, up to a "." line
+ * UNLOAD &lt;id&gt;                      drop a resident circuit
+ * LIST                             list the resident circuits
+ * QUIT                             end the session
+ * </pre>
+ *
+ * Options are the --name=value switches of VerilogParser. SIM streams the
+ * result records as in _simdata.txt (text or compact format) and ends every
+ * reply with an "OK ..." or "ERROR ..." line. RESET lines split the vectors of
+ * a job into independent sequences, as in vector files. Each job simulates a
+ * fork of the resident circuit, so sessions run side by side on one copy of
+ * the compiled netlist. Sessions get virtual threads when the JVM has them
+ * (JDK 21 and up) and pooled platform threads otherwise.
+ *
+ * Usage: java backend.SimulationServer [--port=N] [--stdin]
+ */
+public class SimulationServer {
+
+    static final int DEFAULT_PORT = 7890;
+
+    /**
+     * A compiled circuit kept between jobs, with its vector and print order
+     */
+    private static final class Resident {
+        final Circuit circuit;
+        final String[] orderedInputs;
+        final String[] orderedOutputs;
+
+        Resident(Circuit circuit, String[] orderedInputs, String[] orderedOutputs) {
+            this.circuit = circuit;
+            this.orderedInputs = orderedInputs;
+            this.orderedOutputs = orderedOutputs;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Resident> circuits = new ConcurrentHashMap<>();
+
+    public static void main(String[] args) {
+        int port = DEFAULT_PORT;
+        boolean stdin = false;
+        try {
+            for (String arg : args) {
+                if (arg.startsWith("--port=")) {
+                    port = Integer.parseInt(arg.substring(7));
+                } else if (arg.equals("--stdin")) {
+                    stdin = true;
+                } else {
+                    throw new IllegalArgumentException("Unknown option: " + arg);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: java backend.SimulationServer [--port=N] [--stdin]");
+            System.exit(1);
+        }
+
+        SimulationServer server = new SimulationServer();
+        try {
+            if (stdin) {
+                // stdout carries the protocol, the timing lines go to stderr
+                PrintStream protocol = System.out;
+                System.setOut(System.err);
+                server.serve(System.in, protocol);
+            } else {
+                server.listen(port);
+            }
+        } catch (IOException e) {
+            System.err.println("Server error: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Accepts connections on the loopback interface, one session each
+     *
+     * @param port the TCP port
+     * @throws IOException
+     */
+    void listen(int port) throws IOException {
+        ExecutorService sessions = sessionExecutor();
+        try (ServerSocket listener = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+            System.out.println("Listening on " + listener.getLocalSocketAddress());
+            while (true) {
+                Socket socket = listener.accept();
+                sessions.execute(() -> {
+                    try (Socket session = socket) {
+                        serve(session.getInputStream(), session.getOutputStream());
+                    } catch (IOException e) {
+                        System.err.println("Session error: " + e.getMessage());
+                    }
+                });
+            }
+        } finally {
+            sessions.shutdown();
+        }
+    }
+
+    /**
+     * A virtual thread per session where the JVM has them, a cached pool of
+     * platform threads otherwise. Looked up reflectively so the server still
+     * builds and runs on JDK 17
+     */
+    static ExecutorService sessionExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            System.out.println("Serving sessions on virtual threads");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.out.println("Virtual threads are not available: serving sessions on platform threads");
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    /**
+     * Runs one session until QUIT or the end of its input
+     *
+     * @param input  the requests
+     * @param output the replies
+     * @throws IOException
+     */
+    void serve(InputStream input, OutputStream output) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.ISO_8859_1), 1 << 16);
+        Writer writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.ISO_8859_1), 1 << 16);
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#"))
+                continue;
+            String[] words = line.split("\\s+");
+            try {
+                switch (words[0]) {
+                    case "LOAD":
+                        reply(writer, load(words));
+                        break;
+
+                    case "SIM":
+                        reply(writer, simulate(words, reader, writer));
+                        break;
+
+                    case "UNLOAD":
+                        expect(words, 2);
+                        if (circuits.remove(words[1]) == null)
+                            throw new IllegalArgumentException("Unknown circuit: " + words[1]);
+                        reply(writer, "OK unloaded " + words[1]);
+                        break;
+
+                    case "LIST":
+                        reply(writer, "OK " + String.join(" ", circuits.keySet()));
+                        break;
+
+                    case "QUIT":
+                        reply(writer, "OK bye");
+                        return;
+
+                    default:
+                        throw new IllegalArgumentException("Unknown command: " + words[0]);
+                }
+            } catch (RuntimeException | IOException e) {
+                // Only the request failed, the session and the server go on
+                reply(writer, "ERROR " + (e.getMessage() != null ? e.getMessage() : e.toString()));
+            }
+        }
+    }
+
+    private static void reply(Writer writer, String message) throws IOException {
+        writer.write(message);
+        writer.write('\n');
+        writer.flush();
+    }
+
+    private static void expect(String[] words, int count) {
+        if (words.length < count) {
+            throw new IllegalArgumentException("Usage: " + words[0] + (count > 2 ? " <id> <netlist>" : " <id>"));
+        }
+    }
+
+    /**
+     * LOAD id netlist [options]: loads the compiled circuit from its snapshot
+     * if there is a current one, parses and calibrates the netlist otherwise
+     */
+    private String load(String[] words) throws IOException {
+        expect(words, 3);
+        long startTime = System.currentTimeMillis();
+        String id = words[1];
+        String netlist = words[2];
+        SimulationOptions options = SimulationOptions.parse(words, 3);
+        Resident resident = null;
+        if (options.cache) {
+            CircuitSnapshot snapshot = CircuitSnapshot.read(CircuitSnapshot.cachePath(netlist),
+                    CircuitSnapshot.hashFile(netlist), Circuit.snapshotVariant(options.nets));
+            if (snapshot != null) {
+                Circuit circuit = new Circuit();
+                circuit.compiled = snapshot.compiled;
+                resident = new Resident(circuit, snapshot.orderedInputs, snapshot.orderedOutputs);
+            }
+        }
+        if (resident == null) {
+            VerilogParser parser = new VerilogParser(netlist);
+            String[][] ports = parser.parse();
+            Circuit circuit = parser.getCircuit();
+            circuit.configure(options);
+            circuit.prepare();
+            // Only the compiled circuit stays resident, not the parsed netlist
+            resident = new Resident(circuit.fork(null), ports[0], ports[1]);
+        }
+        circuits.put(id, resident);
+        CompiledCircuit compiled = resident.circuit.compiled;
+        return String.format("OK loaded %s: %d nodes, %d levels in %d ms", id, compiled.nodeCount,
+                compiled.levelStart.length - 1, System.currentTimeMillis() - startTime);
+    }
+
+    /**
+     * SIM id [options], followed by the vectors and a "." line: simulates a
+     * fork of the resident circuit, streaming the results as they are made
+     */
+    private String simulate(String[] words, BufferedReader reader, Writer writer) throws IOException {
+        SessionVectors vectors = new SessionVectors(reader);
+        try {
+            expect(words, 2);
+            Resident resident = circuits.get(words[1]);
+            if (resident == null) {
+                throw new IllegalArgumentException("Unknown circuit: " + words[1]);
+            }
+            SimulationOptions options = SimulationOptions.parse(words, 2);
+            if (options.mode == SimulationMode.LEGACY) {
+                throw new IllegalArgumentException("The legacy engine needs the parsed netlist, use a compiled mode");
+            }
+            if (options.format == ResultFormat.BINARY) {
+                throw new IllegalArgumentException("Binary results are written to a file, use text or compact");
+            }
+            long startTime = System.currentTimeMillis();
+            Circuit job = resident.circuit.fork(null);
+            job.configure(options);
+            ResultSink sink = options.format == ResultFormat.COMPACT ? new CompactResultSink(writer, options.delta)
+                    : new TextResultSink(writer);
+            job.simulateCircuit(resident.orderedInputs, resident.orderedOutputs, vectors, sink);
+            sink.close();
+            return "OK " + vectors.count + " vectors in " + (System.currentTimeMillis() - startTime) + " ms";
+        } finally {
+            // Keep the session in sync whatever went wrong
+            vectors.close();
+        }
+    }
+
+    /**
+     * The vector lines of one SIM request, up to the "." line. Blank lines and
+     * lines starting with '#' are skipped and RESET lines start a new
+     * sequence, like in vector files
+     */
+    private static final class SessionVectors implements VectorSource {
+        private final BufferedReader reader;
+        private String line;
+        private boolean ended;
+        // RESET came before the current vector / before the next vector
+        private boolean reset;
+        private boolean resetPending;
+        long count;
+
+        SessionVectors(BufferedReader reader) {
+            this.reader = reader;
+        }
+
+        @Override
+        public boolean next() throws IOException {
+            while (!ended) {
+                line = reader.readLine();
+                if (line == null || line.trim().equals(".")) {
+                    ended = true;
+                    break;
+                }
+                line = line.trim();
+                if (line.equals(RESET)) {
+                    resetPending = true;
+                } else if (!line.isEmpty() && line.charAt(0) != '#') {
+                    count++;
+                    reset = resetPending;
+                    resetPending = false;
+                    return true;
+                }
+            }
+            line = null;
+            return false;
+        }
+
+        @Override
+        public boolean reset() {
+            return reset;
+        }
+
+        @Override
+        public int width() {
+            return line.length();
+        }
+
+        @Override
+        public int state(int column) {
+            if (column >= line.length()) {
+                throw new IllegalArgumentException("Vector " + count + " has " + line.length()
+                        + " bits, no bit for input " + (column + 1));
+            }
+            int state = Logic.fromChar(line.charAt(column));
+            if (state < 0) {
+                throw new IllegalArgumentException("Invalid vector character '" + line.charAt(column)
+                        + "' in vector " + count);
+            }
+            return state;
+        }
+
+        @Override
+        public char charAt(int column) {
+            return line.charAt(column);
+        }
+
+        /**
+         * Skips whatever is left of the request
+         */
+        @Override
+        public void close() throws IOException {
+            while (next()) {
+            }
+        }
+    }
+}
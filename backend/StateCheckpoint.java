@@ -0,0 +1,112 @@
+package backend;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/**
+ * State of a sequential simulation between two vectors: the value of every
+ * node of the compiled circuit, DFFs included, and the number of vectors
+ * simulated to get there. Taking one is a copy of the engine's state array.
+ * A checkpoint is never modified, so any number of runs can start from it,
+ * one after another or side by side (see Circuit.restore and Circuit.fork).
+ *
+ * Layout of a checkpoint file (big endian): "VSCK", int version, int circuit
+ * fingerprint, long cycles, int node count, then one state byte per node
+ */
+public class StateCheckpoint {
+
+    static final int VERSION = 1;
+    private static final byte[] MAGIC = { 'V', 'S', 'C', 'K' };
+
+    // Hash of the node names, checked before the states are restored
+    final int fingerprint;
+    final long cycles;
+    final byte[] states;
+
+    StateCheckpoint(int fingerprint, long cycles, byte[] states) {
+        this.fingerprint = fingerprint;
+        this.cycles = cycles;
+        this.states = states;
+    }
+
+    /**
+     * Identifies the node numbering of a compiled circuit. The optimizer keeps
+     * node ids, but not the states of the nodes it aliases away: only the
+     * inputs and DFFs of a checkpoint are restored, and the gates evaluated
+     * again from them (see SimulationContext.restore), so optimized and plain
+     * forms of a circuit share checkpoints
+     *
+     * @param circuit the compiled circuit
+     * @return the fingerprint
+     */
+    static int fingerprint(CompiledCircuit circuit) {
+        return Arrays.hashCode(circuit.names);
+    }
+
+    /**
+     * @param circuit the compiled circuit
+     * @return true if this checkpoint was taken on the same node numbering
+     */
+    boolean fits(CompiledCircuit circuit) {
+        return states.length == circuit.nodeCount && fingerprint == fingerprint(circuit);
+    }
+
+    /**
+     * Writes the checkpoint. The file is written next to its final location
+     * first and then moved into place, so a crash never leaves half a
+     * checkpoint behind
+     *
+     * @param path the checkpoint file
+     * @throws IOException
+     */
+    void write(String path) throws IOException {
+        Path target = Paths.get(path).toAbsolutePath();
+        Path temp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp.toFile()), 1 << 16))) {
+            out.write(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(fingerprint);
+            out.writeLong(cycles);
+            out.writeInt(states.length);
+            out.write(states);
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads a checkpoint file
+     *
+     * @param path the checkpoint file
+     * @return the checkpoint
+     * @throws IOException if the file is missing or not a checkpoint
+     */
+    static StateCheckpoint read(String path) throws IOException {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(path), 1 << 16))) {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC) || in.readInt() != VERSION) {
+                throw new IOException("Not a checkpoint file: " + path);
+            }
+            int fingerprint = in.readInt();
+            long cycles = in.readLong();
+            byte[] states = new byte[in.readInt()];
+            in.readFully(states);
+            return new StateCheckpoint(fingerprint, cycles, states);
+        }
+    }
+}
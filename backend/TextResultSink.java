@@ -0,0 +1,80 @@
+package backend;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes results in the original _simdata.txt layout:
+ * 
+ * <pre>
+ * Inputs: 0010
+ * State: 044
+ * OUTPUTS: 4
+ * </pre>
+ * 
+ * followed by an empty line. Records are assembled in a char buffer and handed
+ * to the writer in large batches instead of one write per bit
+ */
+public class TextResultSink implements ResultSink {
+
+    static final int BUFFER_SIZE = 1 << 16;
+    private static final String INPUTS = "Inputs: ";
+    private static final String STATE = "\nState: ";
+    private static final String OUTPUTS = "\nOUTPUTS: ";
+    private static final String END = "\n\n";
+    // Fixed characters of every record
+    static final int RECORD_TEXT = INPUTS.length() + STATE.length() + OUTPUTS.length() + END.length();
+
+    private final Writer writer;
+    private char[] buffer = new char[BUFFER_SIZE];
+    private int used;
+
+    /**
+     * @param writer destination, flushed but not closed by close()
+     */
+    TextResultSink(Writer writer) {
+        this.writer = writer;
+    }
+
+    @Override
+    public void write(char[] inputs, int inputCount, byte[] states, byte[] outputs) throws IOException {
+        int needed = inputCount + states.length + outputs.length + RECORD_TEXT;
+        if (used + needed > buffer.length) {
+            flushBuffer();
+            if (needed > buffer.length) {
+                buffer = new char[needed];
+            }
+        }
+        used = append(buffer, used, INPUTS);
+        System.arraycopy(inputs, 0, buffer, used, inputCount);
+        used += inputCount;
+        used = append(buffer, used, STATE);
+        used = appendStates(buffer, used, states);
+        used = append(buffer, used, OUTPUTS);
+        used = appendStates(buffer, used, outputs);
+        used = append(buffer, used, END);
+    }
+
+    static int append(char[] buffer, int at, String text) {
+        text.getChars(0, text.length(), buffer, at);
+        return at + text.length();
+    }
+
+    static int appendStates(char[] buffer, int at, byte[] states) {
+        for (int i = 0; i < states.length; i++) {
+            buffer[at++] = (char) ('0' + states[i]);
+        }
+        return at;
+    }
+
+    private void flushBuffer() throws IOException {
+        writer.write(buffer, 0, used);
+        used = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        flushBuffer();
+        writer.flush();
+    }
+}
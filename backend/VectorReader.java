@@ -0,0 +1,174 @@
+package backend;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Streaming vector file reader. The file is read through a fixed size NIO
+ * buffer and each line is decoded byte by byte, so memory use does not depend
+ * on the number of vectors. Empty lines and lines starting with '#' are
+ * skipped, like VerilogParser.parseVectorFile, and RESET lines mark the start
+ * of a new sequence. Gzip compressed files are detected by their header and
+ * decompressed on the fly
+ */
+public class VectorReader implements VectorSource {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final ReadableByteChannel channel;
+    private final ByteBuffer buffer;
+    private boolean endOfFile;
+    // Current vector, trimmed
+    private byte[] line = new byte[256];
+    private int length;
+    private long lineNumber;
+    // A RESET line was read since the last vector
+    private boolean resetPending;
+    private boolean reset;
+
+    /**
+     * Opens a vector file
+     * 
+     * @param vectorFilePath path to a plain or gzip compressed vector file
+     * @throws IOException
+     */
+    public VectorReader(String vectorFilePath) throws IOException {
+        FileChannel file = FileChannel.open(Paths.get(vectorFilePath), StandardOpenOption.READ);
+        ByteBuffer magic = ByteBuffer.allocate(2);
+        file.read(magic);
+        file.position(0);
+        if (magic.position() == 2 && (magic.get(0) & 0xff) == 0x1f && (magic.get(1) & 0xff) == 0x8b) {
+            InputStream gzip = new GZIPInputStream(Channels.newInputStream(file), BUFFER_SIZE);
+            this.channel = Channels.newChannel(gzip);
+        } else {
+            this.channel = file;
+        }
+        this.buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        this.buffer.flip();
+    }
+
+    @Override
+    public boolean next() throws IOException {
+        while (readLine()) {
+            // Trim like String.trim and skip blank or comment lines
+            int start = 0;
+            while (start < length && (line[start] & 0xff) <= ' ') {
+                start++;
+            }
+            int end = length;
+            while (end > start && (line[end - 1] & 0xff) <= ' ') {
+                end--;
+            }
+            if (start == end || line[start] == '#') {
+                continue;
+            }
+            if (isReset(start, end)) {
+                resetPending = true;
+                continue;
+            }
+            if (start > 0) {
+                System.arraycopy(line, start, line, 0, end - start);
+            }
+            length = end - start;
+            reset = resetPending;
+            resetPending = false;
+            return true;
+        }
+        return false;
+    }
+
+    private boolean isReset(int start, int end) {
+        if (end - start != RESET.length())
+            return false;
+        for (int i = 0; i < RESET.length(); i++) {
+            if (line[start + i] != RESET.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean reset() {
+        return reset;
+    }
+
+    /**
+     * Reads the raw bytes of the next line into the line buffer
+     * 
+     * @return false at the end of the file
+     */
+    private boolean readLine() throws IOException {
+        length = 0;
+        lineNumber++;
+        boolean any = false;
+        while (true) {
+            if (!buffer.hasRemaining()) {
+                if (!fill()) {
+                    return any;
+                }
+            }
+            any = true;
+            byte b = buffer.get();
+            if (b == '\n') {
+                return true;
+            }
+            if (length == line.length) {
+                line = Arrays.copyOf(line, length * 2);
+            }
+            line[length++] = b;
+        }
+    }
+
+    private boolean fill() throws IOException {
+        if (endOfFile)
+            return false;
+        buffer.clear();
+        int read;
+        do {
+            read = channel.read(buffer);
+        } while (read == 0);
+        buffer.flip();
+        if (read < 0) {
+            endOfFile = true;
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int width() {
+        return length;
+    }
+
+    @Override
+    public int state(int column) {
+        if (column >= length) {
+            throw new IllegalArgumentException("Vector on line " + lineNumber + " has " + length
+                    + " bits, no bit for input " + (column + 1));
+        }
+        int state = Logic.fromChar(line[column]);
+        if (state < 0) {
+            throw new IllegalArgumentException("Invalid vector character '" + (char) line[column] + "' on line "
+                    + lineNumber);
+        }
+        return state;
+    }
+
+    @Override
+    public char charAt(int column) {
+        return (char) (line[column] & 0xff);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
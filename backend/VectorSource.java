@@ -0,0 +1,50 @@
+package backend;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Sequential source of input vectors. Only the current vector is held, so a
+ * source can feed the simulator incrementally with constant memory
+ */
+public interface VectorSource extends Closeable {
+
+    // Directive line between two independent sequences of vectors
+    String RESET = "RESET";
+
+    /**
+     * Advances to the next vector
+     * 
+     * @return false once there are no vectors left
+     * @throws IOException
+     */
+    boolean next() throws IOException;
+
+    /**
+     * @return the number of bits in the current vector
+     */
+    int width();
+
+    /**
+     * @param column position inside the current vector
+     * @return the state of the bit, 0, 1 or 4 for X
+     * @throws IllegalArgumentException if the bit is not a valid state or the
+     *                                  vector is shorter than column + 1
+     */
+    int state(int column);
+
+    /**
+     * @param column position inside the current vector
+     * @return the bit as it was written in the vector file
+     */
+    char charAt(int column);
+
+    /**
+     * @return true if a RESET line came right before the current vector: it
+     *         starts a new sequence, independent of the vectors before it and
+     *         simulated from the all-X state
+     */
+    default boolean reset() {
+        return false;
+    }
+}
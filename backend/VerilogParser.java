@@ -3,145 +3,349 @@ package backend;
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
-import java.util.regex.Pattern;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.regex.Matcher;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class VerilogParser {
     private String fileName;
     private Circuit circuit;
+    private boolean parallel;
+    // Offset of the first gate instance, found by a header-only parse
+    private int gateSectionStart = -1;
 
     public VerilogParser(String fileName) {
         this.fileName = fileName;
         this.circuit = new Circuit();
     }
 
+    /**
+     * Selects the parallel chunked parser for the gate instance section
+     * 
+     * @param parallel true to tokenize gate instances on the fork-join pool
+     */
+    void setParallel(boolean parallel) {
+        this.parallel = parallel;
+    }
+
+    /**
+     * @return the circuit built by the last parse
+     */
+    Circuit getCircuit() {
+        return circuit;
+    }
+
     /**
      * Parses a Verilog file and returns the corresponding circuit object.
+     * The file is memory-mapped and tokenized byte by byte in a single pass;
+     * statements may span several lines and contain comments.
      * 
-     * @return Circuit object representing the parsed Verilog design.
+     * @return the ordered input names and the ordered output names
      * @throws IOException if the file cannot be read.
      */
     public String[][] parse() throws IOException {
-        DataWrapper<String[]> inputs = new DataWrapper<String[]>(null);
-        DataWrapper<String[]> outputs = new DataWrapper<String[]>(null);
-        try (BufferedReader reader = new BufferedReader(new FileReader(fileName))) {
-            String line;
-            Gate prevGate = null; // For linking gates in sequence
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Netlist files over 2 GB are not supported: " + fileName);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (parallel) {
+                try {
+                    return parseParallel(buffer, (int) size);
+                } catch (IllegalArgumentException e) {
+                    System.out.println("Parallel parse failed (" + e.getMessage() + "), parsing sequentially");
+                    circuit = new Circuit();
+                }
+            }
+            return parse(new NetlistTokenizer(buffer, 0, (int) size), new NameTable((int) (size / 24)), false);
+        }
+    }
 
-            while ((line = reader.readLine()) != null) {
-                line = line.trim();
+    /**
+     * Parses the declarations sequentially, then splits the gate instance
+     * section at statement boundaries and tokenizes the slices on the fork-join
+     * pool. The gates are added to the circuit chunk by chunk in file order, so
+     * the result is the same as the sequential parse
+     * 
+     * @param buffer the mapped netlist file
+     * @param size   the file size
+     * @return the ordered input names and the ordered output names
+     */
+    private String[][] parseParallel(MappedByteBuffer buffer, int size) {
+        NameTable nets = new NameTable(size / 24);
+        String[][] ports = parse(new NetlistTokenizer(buffer, 0, size), nets, true);
+        if (gateSectionStart < 0) {
+            return ports;
+        }
 
-                // Skip the module declaration
-                if (line.startsWith("module")) {
-                    continue;
-                }
+        // Declared nets keep their name table index as global id
+        ConcurrentHashMap<String, Integer> netIds = new ConcurrentHashMap<>(size / 12);
+        for (int i = 0; i < nets.size(); i++) {
+            netIds.put(nets.name(i), i);
+        }
+        AtomicInteger nextNetId = new AtomicInteger(nets.size());
+
+        int parallelism = ForkJoinPool.getCommonPoolParallelism();
+        int chunkSize = Math.max(1 << 14, (size - gateSectionStart) / (parallelism * 4));
+        ArrayList<NetlistChunk> chunks = new ArrayList<>();
+        int from = gateSectionStart;
+        while (from < size) {
+            int to = from + chunkSize >= size ? size : nextStatementEnd(buffer, from + chunkSize, size);
+            chunks.add(new NetlistChunk(buffer, from, to, netIds, nextNetId));
+            from = to;
+        }
+        for (NetlistChunk chunk : chunks) {
+            chunk.fork();
+        }
+        for (NetlistChunk chunk : chunks) {
+            chunk.join();
+            if (chunk.error != null) {
+                throw chunk.error;
+            }
+            for (String keyword : chunk.skipped) {
+                System.err.println("Skipping unknown statement '" + keyword + "' in the gate section");
+            }
+        }
 
-                if (line.startsWith("input")) {
-                    inputs.add(parseInputs(line));
-                } else if (line.startsWith("output")) {
-                    outputs.add(parseOutputs(line));
-                } else if (line.startsWith("wire")) {
-                    circuit.parseInputs(stringListToArray(inputs));
-                    circuit.parseOutputs(stringListToArray(outputs));
-                    parseWires(line);
-                } else if (line.matches("^[a-zA-Z]+\\s+\\w+\\s*\\(.*\\);")) {
-                    Gate newGate = parseGate(line);
-                    if (prevGate != null) {
-                        circuit.addNextGate(prevGate, newGate);
+        // Merge in file order; undeclared nets are added on first use, like
+        // the sequential parser does
+        Wire[] wires = new Wire[nextNetId.get()];
+        for (int i = 0; i < nets.size(); i++) {
+            wires[i] = (Wire) nets.value(i);
+        }
+        Gate prevGate = null;
+        for (NetlistChunk chunk : chunks) {
+            for (int g = 0; g < chunk.gateCount; g++) {
+                Gate gate = circuit.addGate(chunk.gateNames[g], chunk.types[g]);
+                if (prevGate != null) {
+                    circuit.addNextGate(prevGate, gate);
+                }
+                prevGate = gate;
+                for (int k = chunk.connectionStart[g]; k < chunk.connectionStart[g + 1]; k++) {
+                    int id = chunk.netOf[k];
+                    if (wires[id] == null) {
+                        circuit.addWire(chunk.netNames[k]);
+                        wires[id] = circuit.wireList.get(chunk.netNames[k]);
+                    }
+                    if (k == chunk.connectionStart[g]) {
+                        circuit.connectFanOut(wires[id], gate);
+                    } else {
+                        circuit.connectFanIn(wires[id], gate);
                     }
-                    prevGate = newGate;
                 }
             }
-
         }
-        return new String[][] { stringListToArray(inputs), stringListToArray(outputs) };
+        return ports;
     }
 
-    private String[] stringListToArray(DataWrapper<String[]> list) {
-        String[] array = new String[list.count()];
-        int i = 0;
-        while (list != null) {
-            array[i++] = list.data[0];
-            list = list.next;
+    /**
+     * Finds the end of the first statement at or after a position: the byte
+     * after a ';' that is not inside a line comment
+     */
+    private static int nextStatementEnd(MappedByteBuffer buffer, int position, int size) {
+        int lineStart = position;
+        while (lineStart > 0 && buffer.get(lineStart - 1) != '\n') {
+            lineStart--;
+        }
+        boolean comment = false;
+        for (int i = lineStart; i < size; i++) {
+            byte b = buffer.get(i);
+            if (b == '\n') {
+                comment = false;
+            } else if (b == '/' && i + 1 < size && buffer.get(i + 1) == '/') {
+                comment = true;
+            } else if (b == ';' && !comment && i >= position) {
+                return i + 1;
+            }
         }
-        return array;
+        return size;
     }
 
     /**
-     * Parses input declarations from a Verilog line.
+     * Parses the statements of a module
      * 
-     * @param line The Verilog line starting with "input".
+     * @param tokens the tokenizer positioned before the first statement
+     * @param nets       name table used to intern net names
+     * @param headerOnly stop at the first gate instance and remember where it
+     *                   starts
+     * @return the ordered input names and the ordered output names
      */
-    private String[] parseInputs(String line) {
-        return line.replace("input", "").replace(";", "").trim().split(",");
+    private String[][] parse(NetlistTokenizer tokens, NameTable nets, boolean headerOnly) {
+        ArrayList<String> inputs = new ArrayList<>();
+        ArrayList<String> outputs = new ArrayList<>();
+        ArrayList<Integer> names = new ArrayList<>();
+        boolean portsDeclared = false;
+        Gate prevGate = null; // For linking gates in sequence
+        GateType type;
+
+        while (tokens.next() != NetlistTokenizer.EOF) {
+            if (tokens.kind != NetlistTokenizer.IDENTIFIER) {
+                throw new IllegalArgumentException("Unexpected '" + tokens.punctuation + "' on line " + tokens.line);
+            }
+            if (tokens.matches("module")) {
+                // Skip the module declaration
+                tokens.skipStatement();
+            } else if (tokens.matches("endmodule")) {
+                break;
+            } else if (tokens.matches("input") || tokens.matches("output")) {
+                boolean input = tokens.matches("input");
+                readNames(tokens, nets, names);
+                for (int index : names) {
+                    (input ? inputs : outputs).add(nets.name(index));
+                    if (portsDeclared) {
+                        declarePort(nets, index, input);
+                    }
+                }
+            } else if (tokens.matches("wire")) {
+                if (!portsDeclared) {
+                    portsDeclared = declarePorts(nets, inputs, outputs);
+                }
+                readNames(tokens, nets, names);
+                for (int index : names) {
+                    circuit.addWire(nets.name(index));
+                    nets.setValue(index, circuit.wireList.get(nets.name(index)));
+                }
+            } else if ((type = tokens.gateType()) != null) {
+                if (!portsDeclared) {
+                    portsDeclared = declarePorts(nets, inputs, outputs);
+                }
+                if (headerOnly) {
+                    gateSectionStart = tokens.start;
+                    break;
+                }
+                Gate newGate = parseGate(tokens, nets, type);
+                if (prevGate != null) {
+                    circuit.addNextGate(prevGate, newGate);
+                }
+                prevGate = newGate;
+            } else {
+                // Like the line based parser this replaced, ignore what is not
+                // understood instead of giving up on the whole netlist
+                System.err.println("Skipping unknown statement '" + tokens.text() + "' on line " + tokens.line);
+                tokens.skipStatement();
+            }
+        }
+        if (!portsDeclared) {
+            declarePorts(nets, inputs, outputs);
+        }
+        return new String[][] { inputs.toArray(new String[0]), outputs.toArray(new String[0]) };
     }
 
     /**
-     * Parses output declarations from a Verilog line.
+     * Reads a comma separated name list terminated by ';'
      * 
-     * @param line The Verilog line starting with "output".
+     * @param names receives the name table indices of the names
      */
-    private String[] parseOutputs(String line) {
-        return line.replace("output", "").replace(";", "").trim().split(",");
+    private static void readNames(NetlistTokenizer tokens, NameTable nets, ArrayList<Integer> names) {
+        names.clear();
+        while (true) {
+            if (tokens.next() != NetlistTokenizer.IDENTIFIER) {
+                throw new IllegalArgumentException("Expected a name on line " + tokens.line);
+            }
+            names.add(tokens.intern(nets));
+            tokens.next();
+            if (tokens.isPunctuation(';')) {
+                return;
+            }
+            if (!tokens.isPunctuation(',')) {
+                throw new IllegalArgumentException("Expected ',' or ';' on line " + tokens.line);
+            }
+        }
     }
 
     /**
-     * Parses wire declarations from a Verilog line.
+     * Adds all inputs and outputs collected so far to the circuit
      * 
-     * @param line The Verilog line starting with "wire".
+     * @return always true, so callers can remember the ports were declared
      */
-    private void parseWires(String line) {
-        String[] wires = line.replace("wire", "").replace(";", "").trim().split(",");
-        for (String wire : wires) {
-            circuit.addWire(wire.trim());
+    private boolean declarePorts(NameTable nets, ArrayList<String> inputs, ArrayList<String> outputs) {
+        for (String name : inputs) {
+            declarePort(nets, nets.intern(name), true);
         }
+        for (String name : outputs) {
+            declarePort(nets, nets.intern(name), false);
+        }
+        return true;
+    }
+
+    private void declarePort(NameTable nets, int index, boolean input) {
+        String name = nets.name(index);
+        if (input) {
+            circuit.addInput(name);
+        } else {
+            circuit.addOutput(name);
+        }
+        nets.setValue(index, circuit.wireList.get(name));
     }
 
     /**
-     * Parses a gate declaration from a Verilog line and adds it to the circuit.
+     * Parses a gate instance, format type name (output, input1, input2, etc);
+     * and adds it to the circuit.
      * 
-     * @param line The Verilog line defining a gate.
+     * @param tokens the tokenizer positioned on the gate type
+     * @param type   the gate type
      * @return The parsed Gate object.
      */
-    private Gate parseGate(String line) {
-        Pattern pattern = Pattern.compile("([a-zA-Z]+)\\s+(\\w+)\\s*\\((.*)\\);");
-        Matcher matcher = pattern.matcher(line);
-
-        if (matcher.find()) {
-            String gateType = matcher.group(1); // Gate type (EX AND, OR)
-            String gateName = matcher.group(2); // Gate name (EX XG1, XG2)
-            String[] connections = matcher.group(3).split(","); // Connections (wires)
-
-            GateType type = GateType.valueOf(gateType.toUpperCase());
-            Gate gate = circuit.addGate(gateName, type);
-
-            // First connection is the output wire
-            ensureWireExists(connections[0].trim());
-            circuit.addFanOut(connections[0].trim(), gate);
+    private Gate parseGate(NetlistTokenizer tokens, NameTable nets, GateType type) {
+        int line = tokens.line;
+        if (tokens.next() != NetlistTokenizer.IDENTIFIER) {
+            throw new IllegalArgumentException("Invalid gate declaration on line " + line);
+        }
+        Gate gate = circuit.addGate(tokens.text(), type);
+        tokens.next();
+        if (!tokens.isPunctuation('(')) {
+            throw new IllegalArgumentException("Invalid gate declaration on line " + line);
+        }
 
-            // Remaining connections are input wires
-            for (int i = 1; i < connections.length; i++) {
-                ensureWireExists(connections[i].trim());
-                circuit.addFanIn(connections[i].trim(), gate);
+        // First connection is the output wire, the rest are input wires
+        boolean first = true;
+        while (true) {
+            if (tokens.next() != NetlistTokenizer.IDENTIFIER) {
+                throw new IllegalArgumentException("Invalid gate declaration on line " + line);
+            }
+            Wire wire = netWire(nets, tokens.intern(nets));
+            if (first) {
+                circuit.connectFanOut(wire, gate);
+                first = false;
+            } else {
+                circuit.connectFanIn(wire, gate);
+            }
+            tokens.next();
+            if (tokens.isPunctuation(')')) {
+                break;
+            }
+            if (!tokens.isPunctuation(',')) {
+                throw new IllegalArgumentException("Invalid gate declaration on line " + line);
             }
-
-            return gate;
         }
-
-        throw new IllegalArgumentException("Invalid gate declaration: " + line);
+        tokens.next();
+        if (!tokens.isPunctuation(';')) {
+            throw new IllegalArgumentException("Invalid gate declaration on line " + line);
+        }
+        return gate;
     }
 
     /**
-     * Ensures a wire exists in the circuit. If it doesn't, adds it dynamically.
+     * Returns the wire of a net, adding it to the circuit if it was never
+     * declared
      * 
-     * @param name The name of the wire to ensure exists.
+     * @param index the name table index of the net
      */
-    private void ensureWireExists(String name) {
-        if (!circuit.wireList.containsKey(name)) {
-            circuit.addWire(name);
+    private Wire netWire(NameTable nets, int index) {
+        Wire wire = (Wire) nets.value(index);
+        if (wire == null) {
+            circuit.addWire(nets.name(index));
+            wire = circuit.wireList.get(nets.name(index));
+            nets.setValue(index, wire);
         }
+        return wire;
     }
 
     /**
@@ -161,6 +365,10 @@ public class VerilogParser {
                 if (line.isEmpty() || line.startsWith("#")) {
                     continue;
                 }
+                if (line.equals(VectorSource.RESET)) {
+                    vectors.add(new String[] { VectorSource.RESET });
+                    continue;
+                }
                 vectors.add(line.split(""));
             }
 
@@ -171,28 +379,119 @@ public class VerilogParser {
     /**
      * Main method for testing the Verilog parser.
      * 
-     * @param args Command-line arguments (not used).
+     * @param args Command-line arguments: netlist path, vector file path and
+     *             optional switches (see SimulationOptions)
      */
     public static void main(String[] args) {
-        if (args.length != 2) {
-            System.err.println("Usage: java backend.VerilogParser <file-path> <vector-file-path");
+        if (args.length < 2) {
+            System.err.println("Usage: java backend.VerilogParser <file-path> <vector-file-path> [options]");
+            System.err.print(SimulationOptions.usage());
             System.exit(1);
         }
 
         String filePath = args[0];
         String vectorFilePath = args[1];
+        SimulationOptions options = null;
+        try {
+            options = SimulationOptions.parse(args, 2);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.print(SimulationOptions.usage());
+            System.exit(1);
+        }
 
+        // Set once the circuit is parsed or loaded, to tell the failing phase
+        boolean simulating = false;
         try {
             long totalStartTime = System.currentTimeMillis();
 
-            VerilogParser parser = new VerilogParser(filePath);
-            String[][] inputsOutputsList = parser.parse();
-            String[][] vectors = parser.parseVectorFile(vectorFilePath);
-            // iterate through wires appropriately
+            if (options.parse == ParseMode.COMPARE) {
+                compareParsers(filePath);
+            }
 
-            // String[][] vectors
-            parser.circuit.mainMethod(inputsOutputsList[0], inputsOutputsList[1], vectors, filePath);
-            // Simulates circuit and prints output
+            Metrics metrics = options.metrics ? new Metrics(Circuit.extractBetween(filePath)) : null;
+
+            // A snapshot from an earlier run on the same netlist skips parsing
+            CircuitSnapshot snapshot = null;
+            String cachePath = null;
+            byte[] hash = null;
+            if (options.cache && options.mode != SimulationMode.LEGACY) {
+                long loadStartTime = System.currentTimeMillis();
+                long phaseStart = metrics != null ? metrics.start() : 0;
+                cachePath = CircuitSnapshot.cachePath(filePath);
+                hash = CircuitSnapshot.hashFile(filePath);
+                snapshot = CircuitSnapshot.read(cachePath, hash, Circuit.snapshotVariant(options.nets));
+                if (metrics != null)
+                    metrics.end(Metrics.LOAD, phaseStart);
+                if (snapshot != null) {
+                    System.out.println("Loaded compiled circuit from " + cachePath + " in "
+                            + (System.currentTimeMillis() - loadStartTime) + " ms");
+                }
+            }
+
+            // Inputs that hold one value in every vector become constants
+            int[] tiedInputs = null;
+            if (options.optimize && options.faults == FaultMode.NONE) {
+                long scanStartTime = System.currentTimeMillis();
+                try (VectorReader scan = new VectorReader(vectorFilePath)) {
+                    tiedInputs = NetlistOptimizer.tiedColumns(scan);
+                }
+                System.out.println("Vector scan took " + (System.currentTimeMillis() - scanStartTime) + " ms");
+            }
+
+            if (options.faults != FaultMode.NONE) {
+                CompiledCircuit compiled;
+                String[] orderedInputs;
+                if (snapshot != null) {
+                    compiled = snapshot.compiled;
+                    orderedInputs = snapshot.orderedInputs;
+                } else {
+                    VerilogParser parser = new VerilogParser(filePath);
+                    parser.setParallel(options.parse == ParseMode.PARALLEL);
+                    long parseStartTime = System.currentTimeMillis();
+                    orderedInputs = parser.parse()[0];
+                    System.out.println("Parsing took " + (System.currentTimeMillis() - parseStartTime) + " ms");
+                    parser.circuit.configure(options);
+                    parser.circuit.prepare();
+                    compiled = parser.circuit.compiled;
+                }
+                simulating = true;
+                try (VectorReader vectors = new VectorReader(vectorFilePath)) {
+                    Circuit.simulateFaults(compiled, orderedInputs, vectors, filePath, options.faults);
+                }
+            } else if (snapshot != null) {
+                simulating = true;
+                try (VectorReader vectors = new VectorReader(vectorFilePath)) {
+                    Circuit.simulateSnapshot(snapshot, vectors, filePath, options, metrics, tiedInputs);
+                }
+            } else {
+                VerilogParser parser = new VerilogParser(filePath);
+                parser.setParallel(options.parse == ParseMode.PARALLEL);
+                long parseStartTime = System.currentTimeMillis();
+                long phaseStart = metrics != null ? metrics.start() : 0;
+                String[][] inputsOutputsList = parser.parse();
+                if (metrics != null)
+                    metrics.end(Metrics.PARSE, phaseStart);
+                System.out.println("Parsing took " + (System.currentTimeMillis() - parseStartTime) + " ms");
+                parser.circuit.configure(options);
+                parser.circuit.setMetrics(metrics);
+                parser.circuit.setTiedInputs(tiedInputs);
+                if (cachePath != null) {
+                    parser.circuit.setSnapshot(cachePath, hash);
+                }
+                simulating = true;
+                // Vectors are streamed from the file while simulating
+                try (VectorReader vectors = new VectorReader(vectorFilePath)) {
+                    parser.circuit.mainMethod(inputsOutputsList[0], inputsOutputsList[1], vectors, filePath);
+                    // Simulates circuit and prints output
+                }
+            }
+
+            if (metrics != null) {
+                String metricsPath = metrics.circuitName + "_metrics.json";
+                metrics.writeReport(metricsPath);
+                System.out.println("Metrics written to " + metricsPath);
+            }
 
             long totalEndTime = System.currentTimeMillis();
 
@@ -201,7 +500,52 @@ public class VerilogParser {
         } catch (IOException e) {
             System.err.println("Error reading file: " + e.getMessage());
         } catch (Exception e) {
-            System.err.println("Error parsing Verilog file: " + e.getMessage());
+            String message = e.getMessage() != null ? e.getMessage() : e.toString();
+            System.err.println((simulating ? "Error simulating circuit: " : "Error parsing Verilog file: ") + message);
+        }
+    }
+
+    /**
+     * Times the sequential and the parallel parser on the same file and checks
+     * that both build the same number of gates
+     * 
+     * @param filePath the netlist file
+     */
+    private static void compareParsers(String filePath) throws IOException {
+        long bestSequential = Long.MAX_VALUE;
+        long bestParallel = Long.MAX_VALUE;
+        int sequentialGates = 0;
+        int parallelGates = 0;
+        // A few rounds so both parsers get warmed up
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            VerilogParser sequential = new VerilogParser(filePath);
+            sequential.parse();
+            bestSequential = Math.min(bestSequential, System.nanoTime() - start);
+            sequentialGates = sequential.countGates();
+
+            start = System.nanoTime();
+            VerilogParser parallel = new VerilogParser(filePath);
+            parallel.setParallel(true);
+            parallel.parse();
+            bestParallel = Math.min(bestParallel, System.nanoTime() - start);
+            parallelGates = parallel.countGates();
+        }
+        System.out.println("Sequential parse: " + (bestSequential / 1000) + " us, " + sequentialGates + " gates");
+        System.out.println("Parallel parse:   " + (bestParallel / 1000) + " us, " + parallelGates + " gates ("
+                + ForkJoinPool.getCommonPoolParallelism() + " workers)");
+        if (sequentialGates != parallelGates) {
+            System.err.println("Parsers disagree on the gate count!");
+        }
+    }
+
+    private int countGates() {
+        int count = 0;
+        Gate gate = circuit.firstGate;
+        while (gate != null) {
+            count++;
+            gate = gate.nextGate;
         }
+        return count;
     }
 }
@@ -0,0 +1,279 @@
+package backend;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.function.Supplier;
+
+/**
+ * Feeds a vector stream through a LaneSimulator, one lane per independent
+ * run. In a combinational circuit every vector is such a run; in a circuit
+ * with DFFs every sequence between RESET lines is, starting from the all-X
+ * state. The runs are read a batch of one per lane at a time, stepped
+ * together, and their results handed to the sink in file order, so the output
+ * is that of the compiled engine. Lanes whose sequence already ended run on X
+ * inputs until the longest one is done.
+ *
+ * A step costs the same however few lanes hold a vector, so a batch of a
+ * single run, or whose runs fill less than 1 / MIN_FILL of its lane-steps (a
+ * short vector file, one sequence much longer than the others, a sequential
+ * file without RESET lines), is simulated on the compiled engine instead.
+ * Once a sequence of such a batch grows past STREAM_CHUNK vectors the batch
+ * and the rest of that sequence go to the compiled engine as they are read,
+ * so a long sequence is never held in memory as a whole.
+ */
+public class WideRunner {
+
+    // Lane-steps per vector above which a batch runs on the compiled engine:
+    // a step costs about as much as one compiled vector per word of lanes
+    static final int MIN_FILL = 64;
+    // Vectors of a sequence read before it is known to need the compiled
+    // engine, and the chunks the rest is read in then
+    static final int STREAM_CHUNK = 1 << 14;
+
+    private final LaneSimulator simulator;
+    private final Supplier<SimulationContext> factory;
+    private SimulationContext fallback;
+    private final String[] orderedInputs;
+    private final int[] inputIds;
+    private final int[] outputIds;
+    private final int[] stateIds;
+    // Every vector starts a new run
+    private final boolean combinational;
+    private final Run[] batch;
+    private final long[] ones;
+    private final long[] zeros;
+    long vectorCount;
+    long sequenceCount;
+    // Steps of the whole circuit, all lanes at once
+    long sweeps;
+    // Of the vectors and sequences, those simulated on the compiled engine
+    long fallbackVectors;
+    long fallbackSequences;
+
+    /**
+     * @param simulator      the engine
+     * @param factory        makes the compiled engine context for batches
+     *                       that fill too few lanes, called at most once per
+     *                       run
+     * @param orderedInputs  input names in vector column order
+     * @param orderedOutputs output names in print order
+     */
+    WideRunner(LaneSimulator simulator, Supplier<SimulationContext> factory, String[] orderedInputs,
+            String[] orderedOutputs) {
+        CompiledCircuit circuit = simulator.circuit();
+        this.simulator = simulator;
+        this.factory = factory;
+        this.orderedInputs = orderedInputs;
+        this.inputIds = circuit.resolveInputs(orderedInputs);
+        this.outputIds = circuit.resolveOutputs(orderedOutputs);
+        this.stateIds = circuit.stateDffs;
+        this.combinational = circuit.dffs.length == 0;
+        this.batch = new Run[simulator.lanes()];
+        for (int lane = 0; lane < batch.length; lane++) {
+            batch[lane] = new Run();
+        }
+        this.ones = new long[simulator.lanes() / 64];
+        this.zeros = new long[simulator.lanes() / 64];
+    }
+
+    /**
+     * Simulates every run of a vector stream
+     *
+     * @param vectors the vector source, consumed but not closed
+     * @param sink    receives one record per vector, in file order
+     * @throws IOException
+     */
+    void run(VectorSource vectors, ResultSink sink) throws IOException {
+        vectorCount = 0;
+        sequenceCount = 0;
+        sweeps = 0;
+        fallbackVectors = 0;
+        fallbackSequences = 0;
+        Run current = null;
+        int filled = 0;
+        boolean checked = false;
+        // The rest of the current sequence runs on the compiled engine, chunk
+        // by chunk
+        boolean streaming = false;
+        boolean starts;
+        try {
+            while (vectors.next()) {
+                if (!checked) {
+                    checked = Circuit.checkWidth(orderedInputs, vectors);
+                }
+                starts = current == null || combinational || vectors.reset();
+                if (streaming && (starts || current.count == STREAM_CHUNK)) {
+                    simulateCompiled(current, sink);
+                    current.clear();
+                    current.fresh = false;
+                    // The next sequence goes back to the lanes
+                    streaming = !starts;
+                }
+                if (streaming) {
+                    // Still in the long sequence
+                } else if (starts) {
+                    if (filled == batch.length) {
+                        simulate(filled, sink);
+                        filled = 0;
+                    }
+                    current = batch[filled++];
+                    current.clear();
+                } else if (current.count % STREAM_CHUNK == 0 && sparse(filled, current.count)) {
+                    for (int lane = 0; lane < filled; lane++) {
+                        simulateCompiled(batch[lane], sink);
+                    }
+                    filled = 0;
+                    current.clear();
+                    current.fresh = false;
+                    streaming = true;
+                }
+                current.add(vectors);
+            }
+            if (streaming) {
+                simulateCompiled(current, sink);
+            } else if (filled > 0) {
+                simulate(filled, sink);
+            }
+        } finally {
+            if (fallback != null) {
+                fallback.close();
+                fallback = null;
+            }
+        }
+    }
+
+    /**
+     * @param count  runs in the batch so far
+     * @param length steps the batch takes at least
+     * @return true if the batch is a single run or its runs would fill less
+     *         than 1 / MIN_FILL of its lane-steps
+     */
+    private boolean sparse(int count, int length) {
+        if (count < 2) {
+            return true;
+        }
+        long vectors = 0;
+        for (int lane = 0; lane < count; lane++) {
+            vectors += batch[lane].count;
+        }
+        return vectors * MIN_FILL < (long) length * batch.length;
+    }
+
+    /**
+     * Simulates a run on the compiled engine, from the all-X state when it
+     * starts a sequence and else from where the previous run ended
+     */
+    private void simulateCompiled(Run run, ResultSink sink) throws IOException {
+        if (fallback == null) {
+            fallback = factory.get();
+            // The width was checked once for the whole stream
+            fallback.checked = true;
+        }
+        if (run.fresh) {
+            fallback.reset();
+            sequenceCount++;
+            fallbackSequences++;
+        }
+        run.rewind();
+        fallback.run(run, sink);
+        vectorCount += run.count;
+        fallbackVectors += run.count;
+    }
+
+    /**
+     * Steps the first count runs of the batch together, then writes them
+     */
+    private void simulate(int count, ResultSink sink) throws IOException {
+        int length = 0;
+        for (int lane = 0; lane < count; lane++) {
+            length = Math.max(length, batch[lane].count);
+        }
+        if (sparse(count, length)) {
+            for (int lane = 0; lane < count; lane++) {
+                simulateCompiled(batch[lane], sink);
+            }
+            return;
+        }
+        for (int lane = 0; lane < count; lane++) {
+            batch[lane].prepare(stateIds.length, outputIds.length);
+        }
+        simulator.reset();
+        int lane, j, state;
+        Run run;
+        for (int step = 0; step < length; step++) {
+            for (j = 0; j < inputIds.length; j++) {
+                Arrays.fill(ones, 0L);
+                Arrays.fill(zeros, 0L);
+                for (lane = 0; lane < count; lane++) {
+                    run = batch[lane];
+                    if (step < run.count) {
+                        state = run.state(step, j);
+                        if (state == Logic.ONE) {
+                            ones[lane >>> 6] |= 1L << lane;
+                        } else if (state == Logic.ZERO) {
+                            zeros[lane >>> 6] |= 1L << lane;
+                        }
+                    }
+                }
+                simulator.setLanes(inputIds[j], ones, zeros);
+            }
+            simulator.step();
+            sweeps++;
+            record(count, step, stateIds, 0);
+            record(count, step, outputIds, stateIds.length);
+            for (lane = 0; lane < count; lane++) {
+                run = batch[lane];
+                if (step < run.count) {
+                    run.written += stateIds.length + outputIds.length;
+                }
+            }
+        }
+        for (lane = 0; lane < count; lane++) {
+            batch[lane].replay(sink);
+            vectorCount += batch[lane].count;
+        }
+        sequenceCount += count;
+    }
+
+    /**
+     * Stores the states of some nodes in the results of every run still going,
+     * node by node so each word of lanes is read once
+     *
+     * @param ids    the nodes
+     * @param offset position of the first node inside a result record
+     */
+    private void record(int count, int step, int[] ids, int offset) {
+        long one = 0L, zero = 0L;
+        int word;
+        Run run;
+        for (int j = 0; j < ids.length; j++) {
+            word = -1;
+            for (int lane = 0; lane < count; lane++) {
+                if (lane >>> 6 != word) {
+                    word = lane >>> 6;
+                    one = simulator.ones(ids[j], word);
+                    zero = simulator.zeros(ids[j], word);
+                }
+                run = batch[lane];
+                if (step < run.count) {
+                    run.results[run.written + offset + j] = (one >>> lane & 1L) != 0 ? Logic.ONE
+                            : (zero >>> lane & 1L) != 0 ? Logic.ZERO : Logic.X;
+                }
+            }
+        }
+    }
+
+    /**
+     * The vectors of one run, then its results
+     */
+    private static final class Run extends BufferedSequence {
+        // Starts a sequence, rather than continuing the previous run
+        boolean fresh;
+
+        @Override
+        void clear() {
+            super.clear();
+            fresh = true;
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package backend;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.Arrays;
+
+/**
+ * Pattern-parallel engine with 256 or 512 lanes per net instead of the 64 of
+ * BitParallelSimulator, in the same dual-rail encoding. The gates are
+ * evaluated by a LaneKernel: plain loops over the words by default, or with
+ * --kernel=vector the Vector API kernel, if the JVM runs with
+ * jdk.incubator.vector and the CPU has 256 bit vectors or wider. Both give
+ * the same results. The Vector API kernel is opt-in because end to end it was
+ * slower than the scalar loops on the sample circuits. It is built and run
+ * with
+ * javac --add-modules jdk.incubator.vector backend/*.java backend/simd/*.java
+ * and java --add-modules jdk.incubator.vector.
+ *
+ * Lanes are independent, so they hold either vectors of a combinational
+ * circuit or independent sequences stepped together, see WideRunner.
+ */
+public class WideSimulator implements LaneSimulator {
+
+    static final int DEFAULT_LANES = 256;
+    static final String VECTOR_KERNEL = "backend.simd.VectorLaneKernel";
+
+    final CompiledCircuit circuit;
+    final LaneKernel kernel;
+    final int lanes;
+    // Words per rail, longs per node
+    final int words;
+    final int stride;
+    final long[] values;
+    private final long[] sampled;
+    // Why the Vector API kernel was asked for but is not used, null otherwise
+    String fallback;
+
+    /**
+     * @param circuit      the compiled circuit
+     * @param lanes        lanes per net, a multiple of 64
+     * @param vectorKernel use the Vector API kernel if it can be loaded
+     */
+    WideSimulator(CompiledCircuit circuit, int lanes, boolean vectorKernel) {
+        this.circuit = circuit;
+        this.lanes = lanes;
+        this.words = lanes / 64;
+        this.stride = words * 2;
+        this.kernel = vectorKernel ? loadKernel(lanes) : new ScalarLaneKernel(lanes);
+        this.values = new long[circuit.nodeCount * stride];
+        this.sampled = new long[circuit.dffs.length * stride];
+    }
+
+    /**
+     * The Vector API kernel if it can be loaded and likes the CPU, else the
+     * scalar one
+     */
+    private LaneKernel loadKernel(int lanes) {
+        try {
+            return (LaneKernel) Class.forName(VECTOR_KERNEL).getConstructor(int.class).newInstance(lanes);
+        } catch (InvocationTargetException e) {
+            fallback = e.getCause().getMessage();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            fallback = "jdk.incubator.vector is not available (" + e + ")";
+        }
+        return new ScalarLaneKernel(lanes);
+    }
+
+    @Override
+    public CompiledCircuit circuit() {
+        return circuit;
+    }
+
+    @Override
+    public int lanes() {
+        return lanes;
+    }
+
+    @Override
+    public void reset() {
+        Arrays.fill(values, 0L);
+    }
+
+    @Override
+    public void setLanes(int node, long[] one, long[] zero) {
+        System.arraycopy(one, 0, values, node * stride, words);
+        System.arraycopy(zero, 0, values, node * stride + words, words);
+    }
+
+    @Override
+    public long ones(int node, int word) {
+        return values[node * stride + word];
+    }
+
+    @Override
+    public long zeros(int node, int word) {
+        return values[node * stride + words + word];
+    }
+
+    @Override
+    public void step() {
+        clockDffs();
+        evaluate();
+    }
+
+    void clockDffs() {
+        final int[] dffs = circuit.dffs;
+        final int[] faninStart = circuit.faninStart;
+        final int[] fanin = circuit.fanin;
+        for (int i = 0; i < dffs.length; i++) {
+            System.arraycopy(values, fanin[faninStart[dffs[i]]] * stride, sampled, i * stride, stride);
+        }
+        for (int i = 0; i < dffs.length; i++) {
+            System.arraycopy(sampled, i * stride, values, dffs[i] * stride, stride);
+        }
+    }
+
+    void evaluate() {
+        final LaneKernel kernel = this.kernel;
+        final long[] values = this.values;
+        final int[] order = circuit.evalOrder;
+        final int[] faninStart = circuit.faninStart;
+        final int[] fanin = circuit.fanin;
+        final byte[] types = circuit.types;
+        final int stride = this.stride;
+        final int words = this.words;
+        int node, base;
+        for (int i = 0; i < order.length; i++) {
+            node = order[i];
+            base = node * stride;
+            switch (types[node]) {
+                case CompiledCircuit.BUF:
+                case CompiledCircuit.OUTPUT:
+                case CompiledCircuit.AND:
+                    kernel.and(values, stride, fanin, faninStart[node], faninStart[node + 1], base, base + words);
+                    break;
+                case CompiledCircuit.NOT:
+                case CompiledCircuit.NAND:
+                    kernel.and(values, stride, fanin, faninStart[node], faninStart[node + 1], base + words, base);
+                    break;
+                case CompiledCircuit.OR:
+                    kernel.or(values, stride, fanin, faninStart[node], faninStart[node + 1], base, base + words);
+                    break;
+                case CompiledCircuit.NOR:
+                    kernel.or(values, stride, fanin, faninStart[node], faninStart[node + 1], base + words, base);
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    /**
+     * LaneKernel on plain long loops, for JVMs without the Vector API and
+     * CPUs without wide vector units. The JIT may still vectorize the word
+     * loops
+     */
+    static final class ScalarLaneKernel implements LaneKernel {
+        private final int lanes;
+        private final int words;
+
+        ScalarLaneKernel(int lanes) {
+            this.lanes = lanes;
+            this.words = lanes / 64;
+        }
+
+        @Override
+        public int lanes() {
+            return lanes;
+        }
+
+        @Override
+        public String describe() {
+            return "scalar 64-bit words";
+        }
+
+        @Override
+        public void and(long[] values, int stride, int[] fanin, int from, int to, int one, int zero) {
+            int src;
+            long ones, zeros;
+            for (int w = 0; w < words; w++) {
+                src = fanin[from] * stride + w;
+                ones = values[src];
+                zeros = values[src + words];
+                for (int k = from + 1; k < to; k++) {
+                    src = fanin[k] * stride + w;
+                    ones &= values[src];
+                    zeros |= values[src + words];
+                }
+                values[one + w] = ones;
+                values[zero + w] = zeros;
+            }
+        }
+
+        @Override
+        public void or(long[] values, int stride, int[] fanin, int from, int to, int one, int zero) {
+            int src;
+            long ones, zeros;
+            for (int w = 0; w < words; w++) {
+                src = fanin[from] * stride + w;
+                ones = values[src];
+                zeros = values[src + words];
+                for (int k = from + 1; k < to; k++) {
+                    src = fanin[k] * stride + w;
+                    ones |= values[src];
+                    zeros &= values[src + words];
+                }
+                values[one + w] = ones;
+                values[zero + w] = zeros;
+            }
+        }
+    }
+}
@@ -89,4 +89,50 @@ public class Wire extends Entity {
         }
         return new Gate[] { firstBuffer, lastBuffer };
     }
+
+    /**
+     * Removes the wire by connecting its driver straight to its sinks, without
+     * buffers. The driver takes the place of the wire in the fan-in of every
+     * sink, so pin order is kept, and the sinks take its place in the fan-out
+     * of the driver. Every connection is touched once. Input and output wires
+     * stay in the circuit, as they do with createBuffers
+     */
+    void connectDirect() {
+        if (this.type == GateType.OUTPUT || this.type == GateType.INPUT || fanIn == null || fanOut == null) {
+            return;
+        }
+        // A net has a single driver
+        Entity driver = fanIn.data;
+        DataWrapper<Entity> out = fanOut;
+        DataWrapper<Entity> pin;
+        while (out != null) {
+            // A sink reading the wire twice has it listed twice here, so
+            // each pass replaces the first pin still reading the wire
+            pin = out.data.fanIn;
+            while (pin != null && pin.data != this) {
+                pin = pin.next;
+            }
+            if (pin != null) {
+                pin.data = driver;
+            }
+            out = out.next;
+        }
+        // Splice the fan-out list of the wire into the fan-out of the driver
+        DataWrapper<Entity> entry = driver.fanOut;
+        while (entry != null && entry.data != this) {
+            entry = entry.next;
+        }
+        if (entry != null) {
+            DataWrapper<Entity> rest = entry.next;
+            entry.data = fanOut.data;
+            entry.next = fanOut.next;
+            DataWrapper<Entity> last = entry;
+            while (last.next != null) {
+                last = last.next;
+            }
+            last.next = rest;
+        }
+        fanIn = null;
+        fanOut = null;
+    }
 }
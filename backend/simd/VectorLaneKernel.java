@@ -0,0 +1,137 @@
+package backend.simd;
+
+import backend.LaneKernel;
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * LaneKernel on the Java Vector API, one 256 or 512 bit register per 4 or 8
+ * words of a rail. Kept apart from the backend package because the Vector API
+ * is an incubator module on this JDK: this class is only compiled and loaded
+ * with --add-modules jdk.incubator.vector. WideSimulator loads it by name and
+ * uses plain long loops when it is missing or refuses the CPU.
+ */
+public final class VectorLaneKernel implements LaneKernel {
+
+    // The JIT only turns Vector API calls into vector instructions when the
+    // species is a constant, so every width has its own loops
+    private static final VectorSpecies<Long> SPECIES_256 = LongVector.SPECIES_256;
+    private static final VectorSpecies<Long> SPECIES_512 = LongVector.SPECIES_512;
+
+    private final int lanes;
+    private final int words;
+    // 512 bit registers, else 256 bit ones
+    private final boolean wide;
+
+    /**
+     * @param lanes lanes per rail, 256 or 512
+     * @throws UnsupportedOperationException if the CPU has no vector unit of
+     *                                       at least 256 bits
+     */
+    public VectorLaneKernel(int lanes) {
+        int bits = LongVector.SPECIES_PREFERRED.vectorBitSize();
+        if (bits < 256) {
+            throw new UnsupportedOperationException("the widest vectors of this CPU hold " + bits + " bits");
+        }
+        this.lanes = lanes;
+        this.words = lanes / 64;
+        // A 512 bit rail on a 256 bit CPU takes two registers
+        this.wide = bits >= 512 && lanes >= 512;
+    }
+
+    @Override
+    public int lanes() {
+        return lanes;
+    }
+
+    @Override
+    public String describe() {
+        return "Vector API, " + (wide ? 512 : 256) + "-bit registers";
+    }
+
+    @Override
+    public void and(long[] values, int stride, int[] fanin, int from, int to, int one, int zero) {
+        if (wide) {
+            and512(values, stride, fanin, from, to, one, zero);
+        } else {
+            and256(values, stride, fanin, from, to, one, zero);
+        }
+    }
+
+    @Override
+    public void or(long[] values, int stride, int[] fanin, int from, int to, int one, int zero) {
+        if (wide) {
+            or512(values, stride, fanin, from, to, one, zero);
+        } else {
+            or256(values, stride, fanin, from, to, one, zero);
+        }
+    }
+
+    private void and256(long[] values, int stride, int[] fanin, int from, int to, int one, int zero) {
+        int src;
+        LongVector ones, zeros;
+        for (int w = 0; w < words; w += SPECIES_256.length()) {
+            src = fanin[from] * stride + w;
+            ones = LongVector.fromArray(SPECIES_256, values, src);
+            zeros = LongVector.fromArray(SPECIES_256, values, src + words);
+            for (int k = from + 1; k < to; k++) {
+                src = fanin[k] * stride + w;
+                ones = ones.and(LongVector.fromArray(SPECIES_256, values, src));
+                zeros = zeros.or(LongVector.fromArray(SPECIES_256, values, src + words));
+            }
+            ones.intoArray(values, one + w);
+            zeros.intoArray(values, zero + w);
+        }
+    }
+
+    private void or256(long[] values, int stride, int[] fanin, int from, int to, int one, int zero) {
+        int src;
+        LongVector ones, zeros;
+        for (int w = 0; w < words; w += SPECIES_256.length()) {
+            src = fanin[from] * stride + w;
+            ones = LongVector.fromArray(SPECIES_256, values, src);
+            zeros = LongVector.fromArray(SPECIES_256, values, src + words);
+            for (int k = from + 1; k < to; k++) {
+                src = fanin[k] * stride + w;
+                ones = ones.or(LongVector.fromArray(SPECIES_256, values, src));
+                zeros = zeros.and(LongVector.fromArray(SPECIES_256, values, src + words));
+            }
+            ones.intoArray(values, one + w);
+            zeros.intoArray(values, zero + w);
+        }
+    }
+
+    private void and512(long[] values, int stride, int[] fanin, int from, int to, int one, int zero) {
+        int src;
+        LongVector ones, zeros;
+        for (int w = 0; w < words; w += SPECIES_512.length()) {
+            src = fanin[from] * stride + w;
+            ones = LongVector.fromArray(SPECIES_512, values, src);
+            zeros = LongVector.fromArray(SPECIES_512, values, src + words);
+            for (int k = from + 1; k < to; k++) {
+                src = fanin[k] * stride + w;
+                ones = ones.and(LongVector.fromArray(SPECIES_512, values, src));
+                zeros = zeros.or(LongVector.fromArray(SPECIES_512, values, src + words));
+            }
+            ones.intoArray(values, one + w);
+            zeros.intoArray(values, zero + w);
+        }
+    }
+
+    private void or512(long[] values, int stride, int[] fanin, int from, int to, int one, int zero) {
+        int src;
+        LongVector ones, zeros;
+        for (int w = 0; w < words; w += SPECIES_512.length()) {
+            src = fanin[from] * stride + w;
+            ones = LongVector.fromArray(SPECIES_512, values, src);
+            zeros = LongVector.fromArray(SPECIES_512, values, src + words);
+            for (int k = from + 1; k < to; k++) {
+                src = fanin[k] * stride + w;
+                ones = ones.or(LongVector.fromArray(SPECIES_512, values, src));
+                zeros = zeros.and(LongVector.fromArray(SPECIES_512, values, src + words));
+            }
+            ones.intoArray(values, one + w);
+            zeros.intoArray(values, zero + w);
+        }
+    }
+}
@@ -0,0 +1,303 @@
+package backend;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * JMH benchmarks of the phases of a run: parsing, buffer creation, direct net
+ * connection, levelization, an ECO edit, the legacy calculateStates loop and
+ * end-to-end simulation with a chosen engine, each on S27, S359 and S385 in
+ * the working directory. Phases that change the circuit get a fresh one from
+ * an untimed setup for every invocation. The simulations run on forks of one
+ * compiled circuit, as in the server, so the generated engine reuses its
+ * evaluators and code generation is setup.
+ *
+ * Run with gradle jmh, which reports throughput with the gc profiler and
+ * writes build/results/jmh/results.json, or build the jar with gradle jmhJar
+ * and run java -jar build/libs/verilog-circuit-simulator-jmh.jar -prof gc.
+ * The engine and the numbering of the simulation are parameters, for example
+ * -p mode=compiled,generated -p renumber=false,true. gradle jmhGate fails the
+ * build when a benchmark is slower than in src/jmh/baseline.json, see
+ * build.gradle.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = { "--add-modules", "jdk.incubator.vector" })
+@State(Scope.Thread)
+public class PhaseBenchmark {
+
+    @Param({ "S27", "S359", "S385" })
+    public String circuit;
+
+    String netlist;
+    String[][] vectors;
+
+    @Setup(Level.Trial)
+    public void loadVectors() throws IOException {
+        netlist = circuit + ".v";
+        vectors = new VerilogParser(netlist).parseVectorFile(circuit + ".vec");
+    }
+
+    /**
+     * Vectors and levelized gate evaluations per second, next to the ops/s of
+     * the simulation benchmarks
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Work {
+        public long vectors;
+        public long evaluations;
+
+        @Setup(Level.Iteration)
+        public void clear() {
+            vectors = 0;
+            evaluations = 0;
+        }
+    }
+
+    /**
+     * A freshly parsed netlist for every invocation
+     */
+    @State(Scope.Thread)
+    public static class Parsed {
+        Circuit circuit;
+
+        @Setup(Level.Invocation)
+        public void parse(PhaseBenchmark benchmark) throws IOException {
+            circuit = PhaseBenchmark.parse(benchmark.netlist).getCircuit();
+        }
+    }
+
+    /**
+     * A freshly parsed netlist with its buffers for every invocation
+     */
+    @State(Scope.Thread)
+    public static class Buffered {
+        Circuit circuit;
+
+        @Setup(Level.Invocation)
+        public void parse(PhaseBenchmark benchmark) throws IOException {
+            circuit = PhaseBenchmark.parse(benchmark.netlist).getCircuit();
+            circuit.createBuffers();
+        }
+    }
+
+    /**
+     * A levelized netlist and its lowest AND or OR gate, whose fan-out cone
+     * is levelized again by every edit
+     */
+    @State(Scope.Thread)
+    public static class Edited {
+        NetlistEditor editor;
+        Gate gate;
+        GateType type;
+
+        @Setup(Level.Trial)
+        public void prepare(PhaseBenchmark benchmark) throws IOException {
+            Circuit circuit = PhaseBenchmark.parse(benchmark.netlist).getCircuit();
+            circuit.createBuffers();
+            circuit.calculateLevels();
+            editor = circuit.editor();
+            gate = null;
+            for (Gate ptr = circuit.firstGate; ptr != null; ptr = ptr.nextGate) {
+                if ((ptr.getType() == GateType.AND || ptr.getType() == GateType.OR)
+                        && (gate == null || ptr.level < gate.level))
+                    gate = ptr;
+            }
+            type = gate == null ? null : gate.getType();
+        }
+    }
+
+    /**
+     * A levelized netlist for the legacy engine, fresh for every iteration
+     */
+    @State(Scope.Thread)
+    public static class Legacy {
+        Circuit circuit;
+        Wire[] inputs;
+        Wire[] outputs;
+        long evaluations;
+
+        @Setup(Level.Iteration)
+        public void prepare(PhaseBenchmark benchmark) throws IOException {
+            VerilogParser parser = new VerilogParser(benchmark.netlist);
+            String[] ordered = parser.parse()[0];
+            circuit = parser.getCircuit();
+            circuit.createBuffers();
+            circuit.calculateLevels();
+            inputs = new Wire[ordered.length];
+            for (int i = 0; i < ordered.length; i++) {
+                inputs[i] = circuit.inputs.get(ordered[i]);
+            }
+            outputs = circuit.outputs.values().toArray(new Wire[0]);
+            evaluations = 0;
+            for (Entity[] level : circuit.sched) {
+                evaluations += level.length;
+            }
+        }
+    }
+
+    /**
+     * The compiled circuit, built and optionally renumbered for cache
+     * locality once, and a fork of it for every invocation. The legacy engine
+     * simulates the parsed netlist, which is parsed again for every invocation
+     */
+    @State(Scope.Thread)
+    public static class Simulation {
+        @Param({ "compiled" })
+        public String mode;
+
+        @Param({ "false", "true" })
+        public boolean renumber;
+
+        SimulationMode engine;
+        Circuit prepared;
+        Circuit circuit;
+        String[][] ports;
+        long evaluations;
+
+        @Setup(Level.Trial)
+        public void prepare(PhaseBenchmark benchmark) throws IOException {
+            engine = SimulationMode.readMode(mode);
+            compile(benchmark.netlist);
+            if (engine == SimulationMode.GENERATED) {
+                // Generates the evaluators the forks share
+                prepared.newContext(ports[0], ports[1]).close();
+            }
+            // Counted as full levelized sweeps, whatever the engine skips
+            evaluations = prepared.compiled.evalOrder.length + prepared.compiled.dffs.length;
+        }
+
+        @Setup(Level.Invocation)
+        public void fork(PhaseBenchmark benchmark) throws IOException {
+            if (engine == SimulationMode.LEGACY) {
+                compile(benchmark.netlist);
+                circuit = prepared;
+            } else {
+                circuit = prepared.fork(null);
+            }
+        }
+
+        private void compile(String netlist) throws IOException {
+            VerilogParser parser = new VerilogParser(netlist);
+            ports = parser.parse();
+            prepared = parser.getCircuit();
+            prepared.createBuffers();
+            prepared.calculateLevels();
+            prepared.compile();
+            if (renumber) {
+                prepared.compiled = new NodeRenumberer(prepared.compiled).run();
+                prepared.renumbered = true;
+            }
+            prepared.setMode(engine);
+        }
+    }
+
+    @Benchmark
+    public Circuit parse() throws IOException {
+        return parse(netlist).getCircuit();
+    }
+
+    @Benchmark
+    public Circuit createBuffers(Parsed parsed) {
+        parsed.circuit.createBuffers();
+        return parsed.circuit;
+    }
+
+    @Benchmark
+    public Circuit connectNets(Parsed parsed) {
+        parsed.circuit.connectNets();
+        return parsed.circuit;
+    }
+
+    @Benchmark
+    public Circuit calculateLevels(Buffered buffered) {
+        buffered.circuit.calculateLevels();
+        return buffered.circuit;
+    }
+
+    @Benchmark
+    public void eco(Edited edited) {
+        if (edited.gate == null)
+            return;
+        edited.editor.retypeGate(edited.gate.getName(),
+                edited.type == GateType.AND ? GateType.NAND : GateType.NOR);
+        edited.editor.retypeGate(edited.gate.getName(), edited.type);
+    }
+
+    @Benchmark
+    public void calculateStates(Legacy legacy, Work work, Blackhole blackhole) {
+        ArrayVectorSource source = new ArrayVectorSource(vectors);
+        while (source.next()) {
+            for (int i = 0; i < legacy.inputs.length; i++) {
+                legacy.inputs[i].setState(source.state(i));
+            }
+            legacy.circuit.calculateStates();
+            for (Wire output : legacy.outputs) {
+                blackhole.consume(output.getState());
+            }
+        }
+        work.vectors += vectors.length;
+        work.evaluations += legacy.evaluations * vectors.length;
+    }
+
+    @Benchmark
+    public void simulateCircuit(Simulation simulation, Work work, Blackhole blackhole) throws IOException {
+        ResultSink sink = new BlackholeSink(new TextResultSink(Writer.nullWriter()), blackhole);
+        simulation.circuit.simulateCircuit(simulation.ports[0], simulation.ports[1], new ArrayVectorSource(vectors),
+                sink);
+        sink.close();
+        work.vectors += vectors.length;
+        work.evaluations += simulation.evaluations * vectors.length;
+    }
+
+    private static VerilogParser parse(String netlist) throws IOException {
+        VerilogParser parser = new VerilogParser(netlist);
+        parser.parse();
+        return parser;
+    }
+
+    /**
+     * Hands every result to the blackhole on the way to the real sink, so the
+     * JIT cannot drop the work
+     */
+    private static final class BlackholeSink implements ResultSink {
+        private final ResultSink sink;
+        private final Blackhole blackhole;
+
+        BlackholeSink(ResultSink sink, Blackhole blackhole) {
+            this.sink = sink;
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        public void write(char[] inputs, int inputCount, byte[] states, byte[] outputs) throws IOException {
+            blackhole.consume(states);
+            blackhole.consume(outputs);
+            sink.write(inputs, inputCount, states, outputs);
+        }
+
+        @Override
+        public void close() throws IOException {
+            sink.close();
+        }
+    }
+}
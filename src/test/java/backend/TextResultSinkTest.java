@@ -0,0 +1,86 @@
+package backend;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+class TextResultSinkTest {
+
+    private static final byte[] STATES = { 0, 1, 4 };
+    private static final byte[] OUTPUTS = { 1 };
+
+    @Test
+    void recordTextMatchesTheLiterals() throws IOException {
+        StringWriter out = new StringWriter();
+        TextResultSink sink = new TextResultSink(out);
+        sink.write("0010".toCharArray(), 4, STATES, OUTPUTS);
+        sink.close();
+        assertEquals("Inputs: 0010\nState: 014\nOUTPUTS: 1\n\n", out.toString());
+        assertEquals(out.toString().length() - 4 - STATES.length - OUTPUTS.length, TextResultSink.RECORD_TEXT);
+    }
+
+    @Test
+    void recordEndingAtTheBufferEnd() throws IOException {
+        // A first record leaves room for the second one give or take two
+        // chars, so the second one ends right at, before or past the buffer end
+        int second = 4 + STATES.length + OUTPUTS.length + TextResultSink.RECORD_TEXT;
+        for (int slack = -2; slack <= 2; slack++) {
+            int inputCount = TextResultSink.BUFFER_SIZE - second - TextResultSink.RECORD_TEXT - STATES.length
+                    - OUTPUTS.length + slack;
+            char[] inputs = vector(inputCount);
+            StringWriter out = new StringWriter();
+            TextResultSink sink = new TextResultSink(out);
+            sink.write(inputs, inputCount, STATES, OUTPUTS);
+            sink.write(inputs, 4, STATES, OUTPUTS);
+            sink.write(inputs, 4, STATES, OUTPUTS);
+            sink.close();
+            assertEquals(record(inputs, inputCount) + record(inputs, 4) + record(inputs, 4), out.toString());
+        }
+    }
+
+    @Test
+    void recordLongerThanTheBuffer() throws IOException {
+        int inputCount = TextResultSink.BUFFER_SIZE;
+        char[] inputs = vector(inputCount);
+        StringWriter out = new StringWriter();
+        TextResultSink sink = new TextResultSink(out);
+        sink.write(inputs, 4, STATES, OUTPUTS);
+        sink.write(inputs, inputCount, STATES, OUTPUTS);
+        sink.write(inputs, 5, STATES, OUTPUTS);
+        sink.close();
+        assertEquals(record(inputs, 4) + record(inputs, inputCount) + record(inputs, 5), out.toString());
+    }
+
+    @Test
+    void mixedWidthVectorsCrossingTheBufferEnd() throws IOException {
+        // Record lengths of 4, 5 and 4 input bits, as in a mixed-width file
+        char[] inputs = vector(5);
+        StringWriter out = new StringWriter();
+        StringBuilder expected = new StringBuilder();
+        TextResultSink sink = new TextResultSink(out);
+        for (int i = 0; i < 1802 + 17 + 5; i++) {
+            int width = i >= 1802 && i < 1802 + 17 ? 5 : 4;
+            sink.write(inputs, width, STATES, OUTPUTS);
+            expected.append(record(inputs, width));
+        }
+        sink.close();
+        assertEquals(expected.toString(), out.toString());
+    }
+
+    private static char[] vector(int length) {
+        char[] inputs = new char[length];
+        Arrays.fill(inputs, '0');
+        for (int i = 1; i < length; i += 2) {
+            inputs[i] = '1';
+        }
+        return inputs;
+    }
+
+    private static String record(char[] inputs, int inputCount) {
+        return "Inputs: " + new String(inputs, 0, inputCount) + "\nState: 014\nOUTPUTS: 1\n\n";
+    }
+}